@@ -12,11 +12,22 @@ repositories {
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
 
     implementation("com.fasterxml.jackson.core:jackson-core:2.18.2")
     implementation("com.fasterxml.jackson.core:jackson-databind:2.18.2")
+    implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-smile:2.18.2")
+    implementation("com.fasterxml.jackson.dataformat:jackson-dataformat-cbor:2.18.2")
+
+    // Generates <SimpleName>_Codec classes for @Persistent types
+    annotationProcessor(project(":processor"))
 }
 
 tasks.test {
     useJUnitPlatform()
+    // JsonStore keeps its files in the working directory
+    workingDir = layout.buildDirectory.dir("test-store").get().asFile
+    doFirst {
+        workingDir.mkdirs()
+    }
 }
\ No newline at end of file
@@ -0,0 +1,504 @@
+package JavaObjectPersistency.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Generates a <SimpleName>_Codec for every @Persistent class. The codec reads and writes records
+// directly on Jackson's streaming API; classes it cannot handle keep using the reflection path.
+@SupportedAnnotationTypes({
+        CodecProcessor.PERSISTENT,
+        CodecProcessor.ID,
+        CodecProcessor.FIELD_ALIAS,
+        CodecProcessor.TRANSIENT,
+        CodecProcessor.LAZY
+})
+public class CodecProcessor extends AbstractProcessor {
+    static final String PERSISTENT = "JavaObjectPersistency.annotations.Persistent";
+    static final String ID = "JavaObjectPersistency.annotations.Id";
+    static final String FIELD_ALIAS = "JavaObjectPersistency.annotations.FieldAlias";
+    static final String TRANSIENT = "JavaObjectPersistency.annotations.Transient";
+    static final String LAZY = "JavaObjectPersistency.annotations.Lazy";
+
+    private static final String CODEC_SUFFIX = "_Codec";
+    private static final String CODEC = "JavaObjectPersistency.store.PersistentCodec";
+    private static final String CONTEXT = "JavaObjectPersistency.store.CodecContext";
+    private static final String REF = "JavaObjectPersistency.store.Ref";
+    private static final String GENERATOR = "com.fasterxml.jackson.core.JsonGenerator";
+    private static final String PARSER = "com.fasterxml.jackson.core.JsonParser";
+    private static final String TOKEN = "com.fasterxml.jackson.core.JsonToken";
+
+    private enum Kind { PRIMITIVE, BOXED, STRING, REFERENCE, REF, REFERENCE_COLLECTION, LAZY_LIST, LAZY_SET, VALUE_COLLECTION, VALUE }
+
+    // getter is an expression over "obj", setter a format with one %s for the new value
+    private record CodecField(String jsonName, TypeMirror type, Kind kind, boolean id,
+                              String getter, String setter, String elementType, String collectionType) {}
+
+    private static class UnsupportedException extends Exception {
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    private Elements elements;
+    private Types types;
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        TypeElement persistent = elements.getTypeElement(PERSISTENT);
+        if (persistent == null) return false;
+
+        for (Element element : round.getElementsAnnotatedWith(persistent)) {
+            if (element.getKind() != ElementKind.CLASS) continue;
+            TypeElement type = (TypeElement) element;
+            try {
+                List<CodecField> fields = collectFields(type);
+                writeCodec(type, fields);
+            } catch (UnsupportedException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                        "No codec generated for " + type.getQualifiedName() + ", using reflection: " + e.getMessage(), type);
+            } catch (IOException e) {
+                processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                        "Could not write codec for " + type.getQualifiedName() + ": " + e.getMessage(), type);
+            }
+        }
+        // Annotations stay available to other processors
+        return false;
+    }
+
+    private List<CodecField> collectFields(TypeElement type) throws UnsupportedException {
+        if (!type.getTypeParameters().isEmpty()) {
+            throw new UnsupportedException("generic classes are not supported");
+        }
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) {
+            throw new UnsupportedException("abstract class");
+        }
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            throw new UnsupportedException("inner classes are not supported");
+        }
+        boolean hasDefaultConstructor = false;
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                hasDefaultConstructor = true;
+            }
+        }
+        if (!hasDefaultConstructor) {
+            throw new UnsupportedException("no accessible default constructor");
+        }
+
+        // Superclass fields first, like the reflection path
+        Deque<TypeElement> hierarchy = new ArrayDeque<>();
+        for (TypeElement current = type; current != null; current = superclassOf(current)) {
+            if (current.getQualifiedName().contentEquals("java.lang.Object")) break;
+            hierarchy.addFirst(current);
+        }
+
+        List<CodecField> fields = new ArrayList<>();
+        boolean hasId = false;
+        for (TypeElement owner : hierarchy) {
+            for (VariableElement field : ElementFilter.fieldsIn(owner.getEnclosedElements())) {
+                if (field.getModifiers().contains(Modifier.STATIC)) continue;
+                if (hasAnnotation(field, TRANSIENT)) continue;
+
+                CodecField codecField = describe(type, owner, field, !hasId && hasAnnotation(field, ID));
+                hasId |= codecField.id();
+                fields.add(codecField);
+            }
+        }
+        if (!hasId) {
+            throw new UnsupportedException("no @Id field");
+        }
+        return fields;
+    }
+
+    private CodecField describe(TypeElement type, TypeElement owner, VariableElement field, boolean id)
+            throws UnsupportedException {
+        String name = field.getSimpleName().toString();
+        TypeMirror fieldType = field.asType();
+        if (fieldType.getKind() == TypeKind.TYPEVAR || fieldType.getKind() == TypeKind.ARRAY) {
+            throw new UnsupportedException("unsupported type of field " + name);
+        }
+
+        String jsonName = name;
+        String alias = annotationValue(field, FIELD_ALIAS);
+        if (alias != null) {
+            jsonName = alias;
+        }
+
+        boolean samePackage = elements.getPackageOf(owner).equals(elements.getPackageOf(type));
+        Set<Modifier> modifiers = field.getModifiers();
+        boolean fieldAccessible = modifiers.contains(Modifier.PUBLIC)
+                || (samePackage && !modifiers.contains(Modifier.PRIVATE));
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+        String getter;
+        if (fieldAccessible) {
+            getter = "obj." + name;
+        } else {
+            String getterName = findAccessor(owner, samePackage, "get" + capitalized, null, fieldType);
+            if (getterName == null && fieldType.getKind() == TypeKind.BOOLEAN) {
+                getterName = findAccessor(owner, samePackage, "is" + capitalized, null, fieldType);
+            }
+            if (getterName == null) {
+                throw new UnsupportedException("no accessible getter for field " + name);
+            }
+            getter = "obj." + getterName + "()";
+        }
+
+        String setter;
+        if (fieldAccessible && !modifiers.contains(Modifier.FINAL)) {
+            setter = "obj." + name + " = %s";
+        } else {
+            String setterName = findAccessor(owner, samePackage, "set" + capitalized, fieldType, null);
+            if (setterName == null) {
+                throw new UnsupportedException("no accessible setter for field " + name);
+            }
+            setter = "obj." + setterName + "(%s)";
+        }
+
+        boolean lazy = hasAnnotation(field, LAZY);
+        if (lazy && !isCollection(fieldType)) {
+            throw new UnsupportedException("@Lazy field " + name + " is not a collection");
+        }
+
+        if (fieldType.getKind().isPrimitive()) {
+            return new CodecField(jsonName, fieldType, Kind.PRIMITIVE, id, getter, setter, null, null);
+        }
+        String erasure = erasure(fieldType);
+        if (isBoxed(erasure)) {
+            return new CodecField(jsonName, fieldType, Kind.BOXED, id, getter, setter, null, null);
+        }
+        if (erasure.equals("java.lang.String")) {
+            return new CodecField(jsonName, fieldType, Kind.STRING, id, getter, setter, null, null);
+        }
+        if (isPersistent(fieldType)) {
+            return new CodecField(jsonName, fieldType, Kind.REFERENCE, id, getter, setter, null, null);
+        }
+        if (erasure.equals(REF)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) fieldType).getTypeArguments();
+            if (arguments.size() != 1 || !isPersistent(arguments.getFirst())
+                    || !((DeclaredType) arguments.getFirst()).getTypeArguments().isEmpty()) {
+                throw new UnsupportedException("unsupported target type of Ref " + name);
+            }
+            return new CodecField(jsonName, fieldType, Kind.REF, id, getter, setter, erasure(arguments.getFirst()), null);
+        }
+        if (isCollection(fieldType)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) fieldType).getTypeArguments();
+            if (arguments.size() != 1 || arguments.getFirst().getKind() != TypeKind.DECLARED
+                    || !((DeclaredType) arguments.getFirst()).getTypeArguments().isEmpty()) {
+                throw new UnsupportedException("unsupported element type of collection " + name);
+            }
+            TypeMirror elementType = arguments.getFirst();
+            if (lazy) {
+                return new CodecField(jsonName, fieldType, lazyKind(fieldType, elementType, name), id, getter, setter,
+                        erasure(elementType), null);
+            }
+            Kind kind = isPersistent(elementType) ? Kind.REFERENCE_COLLECTION : Kind.VALUE_COLLECTION;
+            return new CodecField(jsonName, fieldType, kind, id, getter, setter,
+                    erasure(elementType), collectionImplementation(fieldType, name));
+        }
+        return new CodecField(jsonName, fieldType, Kind.VALUE, id, getter, setter, null, null);
+    }
+
+    private String findAccessor(TypeElement owner, boolean samePackage, String methodName,
+                                TypeMirror parameter, TypeMirror result) {
+        for (ExecutableElement method : ElementFilter.methodsIn(owner.getEnclosedElements())) {
+            if (!method.getSimpleName().contentEquals(methodName)) continue;
+            Set<Modifier> modifiers = method.getModifiers();
+            if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)) continue;
+            if (!modifiers.contains(Modifier.PUBLIC) && !samePackage) continue;
+
+            if (parameter == null) {
+                if (method.getParameters().isEmpty() && types.isSameType(method.getReturnType(), result)) {
+                    return methodName;
+                }
+            } else if (method.getParameters().size() == 1
+                    && types.isSameType(method.getParameters().getFirst().asType(), parameter)) {
+                return methodName;
+            }
+        }
+        return null;
+    }
+
+    private String collectionImplementation(TypeMirror fieldType, String name) throws UnsupportedException {
+        TypeElement element = (TypeElement) types.asElement(fieldType);
+        if (element.getKind() == ElementKind.CLASS && !element.getModifiers().contains(Modifier.ABSTRACT)) {
+            return element.getQualifiedName().toString();
+        }
+        if (isAssignable(fieldType, "java.util.Set")) {
+            return "java.util.HashSet";
+        }
+        String qualifiedName = element.getQualifiedName().toString();
+        if (qualifiedName.equals("java.util.List") || qualifiedName.equals("java.util.Collection")) {
+            return "java.util.ArrayList";
+        }
+        throw new UnsupportedException("unsupported collection type of field " + name);
+    }
+
+    // @Lazy collections are filled with LazyList or LazySet, so the field has to accept one
+    private Kind lazyKind(TypeMirror fieldType, TypeMirror elementType, String name) throws UnsupportedException {
+        if (!isPersistent(elementType)) {
+            throw new UnsupportedException("@Lazy field " + name + " does not hold @Persistent objects");
+        }
+        String collection = erasure(fieldType);
+        if (collection.equals("java.util.List") || collection.equals("java.util.Collection")) {
+            return Kind.LAZY_LIST;
+        }
+        if (collection.equals("java.util.Set")) {
+            return Kind.LAZY_SET;
+        }
+        throw new UnsupportedException("@Lazy field " + name + " must be declared as List, Set or Collection");
+    }
+
+    private void writeCodec(TypeElement type, List<CodecField> fields) throws IOException {
+        String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+        String binaryName = elements.getBinaryName(type).toString();
+        String simpleName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1))
+                .replace('$', '_') + CODEC_SUFFIX;
+        String qualifiedName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        String typeName = type.getQualifiedName().toString();
+
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter())) {
+            if (!packageName.isEmpty()) {
+                out.println("package " + packageName + ";");
+                out.println();
+            }
+            out.println("@javax.annotation.processing.Generated(\"" + CodecProcessor.class.getName() + "\")");
+            out.println("@SuppressWarnings({\"unchecked\", \"rawtypes\"})");
+            out.println("public final class " + simpleName + " implements " + CODEC + "<" + typeName + "> {");
+
+            out.println("    @Override");
+            out.println("    public void write(" + typeName + " obj, " + GENERATOR + " generator, " + CONTEXT
+                    + " context) throws java.io.IOException {");
+            out.println("        generator.writeStartObject();");
+            // The id goes first so readers can consult the identity cache before reading anything else
+            for (CodecField field : fields) {
+                if (field.id()) writeField(out, field);
+            }
+            for (CodecField field : fields) {
+                if (!field.id()) writeField(out, field);
+            }
+            out.println("        generator.writeEndObject();");
+            out.println("    }");
+            out.println();
+
+            out.println("    @Override");
+            out.println("    public " + typeName + " read(" + PARSER + " parser, " + CONTEXT
+                    + " context) throws java.io.IOException {");
+            out.println("        " + typeName + " obj = new " + typeName + "();");
+            out.println("        while (parser.nextToken() == " + TOKEN + ".FIELD_NAME) {");
+            out.println("            String field = parser.currentName();");
+            out.println("            parser.nextToken();");
+            out.println("            switch (field) {");
+            for (CodecField field : fields) {
+                readField(out, field, typeName);
+            }
+            out.println("                default:");
+            out.println("                    parser.skipChildren();");
+            out.println("            }");
+            out.println("        }");
+            out.println("        return obj;");
+            out.println("    }");
+            out.println("}");
+        }
+    }
+
+    private void writeField(PrintWriter out, CodecField field) {
+        out.println("        generator.writeFieldName(\"" + escape(field.jsonName()) + "\");");
+        String value = field.getter();
+        switch (field.kind()) {
+            case PRIMITIVE -> out.println("        " + writePrimitive(field.type().getKind(), value) + ";");
+            case BOXED -> {
+                out.println("        {");
+                out.println("            " + erasure(field.type()) + " value = " + value + ";");
+                out.println("            if (value == null) generator.writeNull();");
+                out.println("            else " + writePrimitive(types.unboxedType(field.type()).getKind(), "value") + ";");
+                out.println("        }");
+            }
+            case STRING -> out.println("        generator.writeString(" + value + ");");
+            case REFERENCE, REF -> out.println("        context.writeReference(generator, " + value + ");");
+            case REFERENCE_COLLECTION, LAZY_LIST, LAZY_SET ->
+                    out.println("        context.writeReferences(generator, " + value + ");");
+            case VALUE_COLLECTION -> {
+                out.println("        {");
+                out.println("            java.util.Collection values = " + value + ";");
+                out.println("            if (values == null) {");
+                out.println("                generator.writeNull();");
+                out.println("            } else {");
+                out.println("                generator.writeStartArray();");
+                out.println("                for (Object value : values) {");
+                out.println("                    context.writeValue(generator, value);");
+                out.println("                }");
+                out.println("                generator.writeEndArray();");
+                out.println("            }");
+                out.println("        }");
+            }
+            case VALUE -> out.println("        context.writeValue(generator, " + value + ");");
+        }
+    }
+
+    private static String writePrimitive(TypeKind kind, String value) {
+        return switch (kind) {
+            case BOOLEAN -> "generator.writeBoolean(" + value + ")";
+            case CHAR -> "generator.writeString(String.valueOf(" + value + "))";
+            default -> "generator.writeNumber(" + value + ")";
+        };
+    }
+
+    private void readField(PrintWriter out, CodecField field, String typeName) {
+        out.println("                case \"" + escape(field.jsonName()) + "\": {");
+        String indent = "                    ";
+        if (field.id()) {
+            String idType = field.type().getKind().isPrimitive()
+                    ? types.boxedClass((PrimitiveType) field.type()).getQualifiedName().toString()
+                    : erasure(field.type());
+            out.println(indent + idType + " id = context.readValue(parser, " + idType + ".class);");
+            out.println(indent + typeName + " cached = context.cached(" + typeName + ".class, id);");
+            out.println(indent + "if (cached != null) {");
+            out.println(indent + "    context.skipObject(parser);");
+            out.println(indent + "    return cached;");
+            out.println(indent + "}");
+            out.println(indent + "if (id != null) {");
+            out.println(indent + "    " + String.format(field.setter(), "id") + ";");
+            out.println(indent + "    context.register(obj);");
+            out.println(indent + "}");
+            out.println(indent + "break;");
+            out.println("                }");
+            return;
+        }
+        switch (field.kind()) {
+            case PRIMITIVE -> {
+                out.println(indent + "if (parser.currentToken() != " + TOKEN + ".VALUE_NULL) {");
+                out.println(indent + "    " + String.format(field.setter(), readPrimitive(field.type().getKind())) + ";");
+                out.println(indent + "}");
+            }
+            case BOXED -> out.println(indent + String.format(field.setter(),
+                    "parser.currentToken() == " + TOKEN + ".VALUE_NULL ? null : ("
+                            + erasure(field.type()) + ") " + readPrimitive(types.unboxedType(field.type()).getKind())) + ";");
+            case STRING -> out.println(indent + String.format(field.setter(), "parser.getValueAsString()") + ";");
+            case REFERENCE -> out.println(indent + "context.readReference(parser, " + erasure(field.type()) + ".class, value -> "
+                    + String.format(field.setter(), "value") + ");");
+            case REF -> out.println(indent + String.format(field.setter(),
+                    "context.readRef(parser, " + field.elementType() + ".class)") + ";");
+            case LAZY_LIST -> out.println(indent + String.format(field.setter(),
+                    "context.readLazyList(parser, " + field.elementType() + ".class)") + ";");
+            case LAZY_SET -> out.println(indent + String.format(field.setter(),
+                    "context.readLazySet(parser, " + field.elementType() + ".class)") + ";");
+            case REFERENCE_COLLECTION, VALUE_COLLECTION -> {
+                out.println(indent + field.type() + " values = new " + field.collectionType() + "<>();");
+                out.println(indent + String.format(field.setter(),
+                        "context.readCollection(parser, " + field.elementType() + ".class, values) ? values : null") + ";");
+            }
+            case VALUE -> out.println(indent + String.format(field.setter(),
+                    "context.readValue(parser, " + erasure(field.type()) + ".class)") + ";");
+        }
+        out.println(indent + "break;");
+        out.println("                }");
+    }
+
+    private static String readPrimitive(TypeKind kind) {
+        return switch (kind) {
+            case BOOLEAN -> "parser.getBooleanValue()";
+            case CHAR -> "parser.getText().charAt(0)";
+            case BYTE -> "parser.getByteValue()";
+            case SHORT -> "parser.getShortValue()";
+            case INT -> "parser.getIntValue()";
+            case LONG -> "parser.getLongValue()";
+            case FLOAT -> "parser.getFloatValue()";
+            default -> "parser.getDoubleValue()";
+        };
+    }
+
+    private TypeElement superclassOf(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) return null;
+        return (TypeElement) types.asElement(superclass);
+    }
+
+    private boolean isPersistent(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        return hasAnnotation(types.asElement(type), PERSISTENT);
+    }
+
+    private boolean isCollection(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && isAssignable(type, "java.util.Collection");
+    }
+
+    private boolean isAssignable(TypeMirror type, String className) {
+        TypeElement target = elements.getTypeElement(className);
+        return target != null && types.isAssignable(types.erasure(type), types.erasure(target.asType()));
+    }
+
+    private static boolean isBoxed(String className) {
+        return switch (className) {
+            case "java.lang.Boolean", "java.lang.Character", "java.lang.Byte", "java.lang.Short",
+                 "java.lang.Integer", "java.lang.Long", "java.lang.Float", "java.lang.Double" -> true;
+            default -> false;
+        };
+    }
+
+    private String erasure(TypeMirror type) {
+        return types.erasure(type).toString();
+    }
+
+    private static boolean hasAnnotation(Element element, String annotation) {
+        return findAnnotation(element, annotation) != null;
+    }
+
+    private static AnnotationMirror findAnnotation(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            TypeElement annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            if (annotationType.getQualifiedName().contentEquals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private static String annotationValue(Element element, String annotation) {
+        AnnotationMirror mirror = findAnnotation(element, annotation);
+        if (mirror == null) return null;
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry : mirror.getElementValues().entrySet()) {
+            if (entry.getKey().getSimpleName().contentEquals("value")) {
+                return entry.getValue().getValue().toString();
+            }
+        }
+        return null;
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -1,2 +1,3 @@
 rootProject.name = "Json-to-Object-loading"
 
+include("processor")
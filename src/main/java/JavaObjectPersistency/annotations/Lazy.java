@@ -0,0 +1,13 @@
+package JavaObjectPersistency.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+// A List, Set or Collection of @Persistent objects that is loaded on first access instead of with its owner.
+// Single references are made lazy by declaring the field as Ref<T>.
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Lazy {}
@@ -37,6 +37,10 @@ public class DifferentPerson {
         return id;
     }
 
+    public void setId(Object id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -1,30 +1,30 @@
 package JavaObjectPersistency.classes;
 
 import JavaObjectPersistency.store.IdGenerator;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import JavaObjectPersistency.store.JsonStore;
 
-import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class IntIdGenerator implements IdGenerator {
-    private static final ObjectMapper mapper = new ObjectMapper();
-
-    private static String getFileName(Class<?> type) {
-        return type.getSimpleName() + ".json";
+    @Override
+    public Object generateId(Object obj, JsonStore store) throws IOException {
+        Integer uid = Math.toIntExact(store.reserveIds(obj.getClass(), 1));
+        return uid;
     }
 
-    public Object generateId(Object obj) throws IOException {
-        String fileName = getFileName(obj.getClass());
-        File file = new File(fileName);
-
-        Map<String, Object> storage = file.exists()
-                ? mapper.readValue(file, Map.class)
-                : new HashMap<>();
-
-        Integer uid = storage.keySet().size() + 1;
-        return uid;
+    @Override
+    public List<Object> generateIds(List<?> objects, JsonStore store) throws IOException {
+        List<Object> ids = new ArrayList<>(objects.size());
+        if (objects.isEmpty()) return ids;
+
+        // One reservation for the whole batch
+        long first = store.reserveIds(objects.getFirst().getClass(), objects.size());
+        for (int i = 0; i < objects.size(); i++) {
+            ids.add(Math.toIntExact(first + i));
+        }
+        return ids;
     }
 }
@@ -1,6 +1,8 @@
 package JavaObjectPersistency.classes;
 
 import JavaObjectPersistency.annotations.Id;
+import JavaObjectPersistency.annotations.Indexed;
+import JavaObjectPersistency.annotations.Lazy;
 import JavaObjectPersistency.annotations.Persistent;
 import JavaObjectPersistency.annotations.Transient;
 import JavaObjectPersistency.annotations.FieldAlias;
@@ -12,15 +14,18 @@ public class Person {
     @Id
     private Object id; // Will be automatically generated if null
 
+    @Indexed
     @FieldAlias("fullName")
     private String name;
 
+    @Indexed
     private int age;
 
     @Transient
     private String temporaryData; // This field won't be serialized
 
-    private List<Person> family;
+    @Lazy
+    private List<Person> family; // Loaded when first accessed
 
     // Default constructor needed for deserialization
     public Person() {
@@ -37,6 +42,10 @@ public class Person {
         return id;
     }
 
+    public void setId(Object id) {
+        this.id = id;
+    }
+
     public String getName() {
         return name;
     }
@@ -0,0 +1,36 @@
+package JavaObjectPersistency.classes;
+
+import JavaObjectPersistency.store.IdGenerator;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// UUID version 7: 48 bits of Unix milliseconds, then a 12 bit counter, then random bits.
+// Ids sort by creation time both as UUIDs and as strings, and never go backwards within a JVM.
+public class TimeOrderedUUIDGenerator implements IdGenerator {
+    private static final long VERSION = 0x7000L;
+    private static final long VARIANT = 0x8000000000000000L;
+
+    // Milliseconds shifted left by 12, plus the counter of ids generated in that millisecond
+    private final AtomicLong last = new AtomicLong();
+
+    public Object generateId(Object obj) {
+        long now = System.currentTimeMillis() << 12;
+        // If the counter overflows the millisecond simply moves ahead of the clock
+        long stamp = last.updateAndGet(previous -> Math.max(previous + 1, now));
+        long random = ThreadLocalRandom.current().nextLong() >>> 2;
+        return new UUID((stamp >>> 12) << 16 | VERSION | (stamp & 0xFFF), VARIANT | random);
+    }
+
+    // Smallest id that can be generated at or after the given time
+    public static UUID lowerBound(Instant time) {
+        return new UUID(time.toEpochMilli() << 16 | VERSION, VARIANT);
+    }
+
+    // Creation time of an id produced by this generator
+    public static Instant timestamp(UUID id) {
+        return Instant.ofEpochMilli(id.getMostSignificantBits() >>> 16);
+    }
+}
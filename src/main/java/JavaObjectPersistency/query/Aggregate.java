@@ -0,0 +1,168 @@
+package JavaObjectPersistency.query;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Aggregation evaluated on the tokens of stored records, in the same pass as the query filter.
+// count() counts the matching records; sum, avg, min and max only use records where the field is a number.
+// avg, min and max of no values are null, sum is 0. groupBy gives a result per value of another field:
+// text stays a String, numbers become Long if they are whole and Double otherwise, a missing value is null.
+public final class Aggregate<R> {
+    private enum Function { COUNT, SUM, AVG, MIN, MAX }
+
+    private final Function function;
+    private final String field;
+    private final String groupBy;
+
+    private Aggregate(Function function, String field, String groupBy) {
+        this.function = function;
+        this.field = field;
+        this.groupBy = groupBy;
+    }
+
+    public static Aggregate<Long> count() {
+        return new Aggregate<>(Function.COUNT, null, null);
+    }
+
+    public static Aggregate<Double> sum(String field) {
+        return new Aggregate<>(Function.SUM, field, null);
+    }
+
+    public static Aggregate<Double> avg(String field) {
+        return new Aggregate<>(Function.AVG, field, null);
+    }
+
+    public static Aggregate<Double> min(String field) {
+        return new Aggregate<>(Function.MIN, field, null);
+    }
+
+    public static Aggregate<Double> max(String field) {
+        return new Aggregate<>(Function.MAX, field, null);
+    }
+
+    public Aggregate<Map<Object, R>> groupBy(String field) {
+        if (groupBy != null) {
+            throw new IllegalArgumentException("Aggregate is already grouped by " + groupBy);
+        }
+        return new Aggregate<>(function, this.field, field);
+    }
+
+    // Accumulator for the records matching the query, a null query matches every record
+    public Accumulator<R> accumulator(Query query) {
+        return new Accumulator<>(this, query);
+    }
+
+    // Collects the records of one scan; accumulators of several partitions are merged with combine.
+    // Not safe for use by several threads at once.
+    public static final class Accumulator<R> {
+        private final Aggregate<R> aggregate;
+        private final CompiledFilter filter;
+        private final int slotCount;
+        private final Map<String, Integer> slots = new LinkedHashMap<>();
+        private final int valueSlot;
+        private final int groupSlot;
+        private final Map<Object, Stats> groups = new HashMap<>();
+
+        private Accumulator(Aggregate<R> aggregate, Query query) {
+            this.aggregate = aggregate;
+            this.filter = query != null ? query.compileFilter(slots) : null;
+            this.valueSlot = aggregate.field != null ? CompilableFilter.slot(slots, aggregate.field) : -1;
+            this.groupSlot = aggregate.groupBy != null ? CompilableFilter.slot(slots, aggregate.groupBy) : -1;
+            this.slotCount = slots.size();
+        }
+
+        // The parser must be positioned at the START_OBJECT token of the record
+        public void accept(JsonParser parser) throws IOException {
+            if (parser.currentToken() != JsonToken.START_OBJECT) return;
+
+            RecordFields fields = new RecordFields(slotCount);
+            int remaining = slotCount;
+            while (remaining > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+                Integer slot = slots.get(parser.currentName());
+                parser.nextToken();
+                if (slot == null) {
+                    parser.skipChildren();
+                } else {
+                    fields.read(slot, parser);
+                    remaining--;
+                }
+            }
+            if (filter != null && !filter.matches(fields)) return;
+
+            Stats stats = groups.computeIfAbsent(groupSlot >= 0 ? key(fields, groupSlot) : null, k -> new Stats());
+            stats.records++;
+            if (valueSlot >= 0 && fields.kind(valueSlot) == RecordFields.NUMBER) {
+                stats.add(fields.number(valueSlot));
+            }
+        }
+
+        public void combine(Accumulator<R> other) {
+            for (Map.Entry<Object, Stats> entry : other.groups.entrySet()) {
+                groups.computeIfAbsent(entry.getKey(), k -> new Stats()).combine(entry.getValue());
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        public R result() {
+            if (aggregate.groupBy == null) {
+                return (R) value(groups.getOrDefault(null, new Stats()));
+            }
+            Map<Object, Object> result = new HashMap<>();
+            for (Map.Entry<Object, Stats> entry : groups.entrySet()) {
+                result.put(entry.getKey(), value(entry.getValue()));
+            }
+            return (R) Collections.unmodifiableMap(result);
+        }
+
+        private Object value(Stats stats) {
+            return switch (aggregate.function) {
+                case COUNT -> stats.records;
+                case SUM -> stats.sum;
+                case AVG -> stats.values == 0 ? null : stats.sum / stats.values;
+                case MIN -> stats.values == 0 ? null : stats.min;
+                case MAX -> stats.values == 0 ? null : stats.max;
+            };
+        }
+
+        private static Object key(RecordFields fields, int slot) {
+            return switch (fields.kind(slot)) {
+                case RecordFields.TEXT -> fields.text(slot);
+                case RecordFields.BOOLEAN -> fields.bool(slot);
+                case RecordFields.NUMBER -> {
+                    double number = fields.number(slot);
+                    yield number == Math.rint(number) && Math.abs(number) < 0x1p53 ? (Object) (long) number : (Object) number;
+                }
+                default -> null;
+            };
+        }
+    }
+
+    private static final class Stats {
+        long records;
+        long values;
+        double sum;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+
+        void add(double value) {
+            values++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        void combine(Stats other) {
+            records += other.records;
+            values += other.values;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package JavaObjectPersistency.query;
+
+import java.util.Map;
+import java.util.Set;
+
+// Filters built by the query parser, which can be turned into token-level evaluators
+interface CompilableFilter extends Filter {
+    // Registers referenced fields in slots (field name -> slot index) and returns the evaluator
+    CompiledFilter compile(Map<String, Integer> slots);
+
+    // Superset of the matching ids taken from secondary indexes, null if the filter needs a full scan
+    default Set<String> candidates(IndexLookup lookup) {
+        return null;
+    }
+
+    static int slot(Map<String, Integer> slots, String field) {
+        return slots.computeIfAbsent(field, k -> slots.size());
+    }
+}
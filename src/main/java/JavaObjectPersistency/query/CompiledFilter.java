@@ -0,0 +1,6 @@
+package JavaObjectPersistency.query;
+
+// Filter evaluated on the field values a CompiledQuery read from the token stream
+interface CompiledFilter {
+    boolean matches(RecordFields fields);
+}
@@ -0,0 +1,45 @@
+package JavaObjectPersistency.query;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+// Query evaluated directly on the tokens of a record: only the referenced top-level fields are read,
+// every other value is skipped, and reading stops once all referenced fields have been seen.
+public final class CompiledQuery {
+    private final CompiledFilter filter;
+    private final Map<String, Integer> slots;
+
+    CompiledQuery(CompiledFilter filter, Map<String, Integer> slots) {
+        this.filter = filter;
+        this.slots = slots;
+    }
+
+    // The parser must be positioned at the START_OBJECT token of the record
+    public boolean matches(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) return false;
+
+        RecordFields fields = new RecordFields(slots.size());
+        int remaining = slots.size();
+        while (remaining > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+            Integer slot = slots.get(parser.currentName());
+            parser.nextToken();
+            if (slot == null) {
+                parser.skipChildren();
+            } else {
+                fields.read(slot, parser);
+                remaining--;
+            }
+        }
+        return filter.matches(fields);
+    }
+
+    // Names of the fields the query reads
+    public Set<String> fields() {
+        return Collections.unmodifiableSet(slots.keySet());
+    }
+}
@@ -2,7 +2,9 @@ package JavaObjectPersistency.query;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
-class ContainsFilter implements Filter {
+import java.util.Map;
+
+class ContainsFilter implements CompilableFilter {
     private final String field;
     private final String value;
 
@@ -18,4 +20,10 @@ class ContainsFilter implements Filter {
 
         return fieldNode.asText().contains(value);
     }
-}
\ No newline at end of file
+
+    @Override
+    public CompiledFilter compile(Map<String, Integer> slots) {
+        int slot = CompilableFilter.slot(slots, field);
+        return fields -> fields.kind(slot) == RecordFields.TEXT && fields.text(slot).contains(value);
+    }
+}
@@ -2,13 +2,36 @@ package JavaObjectPersistency.query;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
-class EqualsFilter implements Filter {
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+class EqualsFilter implements CompilableFilter {
     private final String field;
     private final String value;
+    // The literal parsed once, NaN if it is not a number and null if it is not true or false
+    private final double numericValue;
+    private final Boolean booleanValue;
 
     public EqualsFilter(String field, String value) {
         this.field = field;
         this.value = value;
+        this.numericValue = parseNumber(value);
+        this.booleanValue = parseBoolean(value);
+    }
+
+    private static Boolean parseBoolean(String value) {
+        if (value.equalsIgnoreCase("true")) return Boolean.TRUE;
+        if (value.equalsIgnoreCase("false")) return Boolean.FALSE;
+        return null;
+    }
+
+    private static double parseNumber(String value) {
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
     }
 
     @Override
@@ -19,17 +42,37 @@ class EqualsFilter implements Filter {
         if (fieldNode.isTextual()) {
             return fieldNode.asText().equals(value);
         } else if (fieldNode.isNumber()) {
-            try {
-                double nodeValue = fieldNode.asDouble();
-                double compareValue = Double.parseDouble(value);
-                return nodeValue == compareValue;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            return fieldNode.asDouble() == numericValue;
         } else if (fieldNode.isBoolean()) {
-            return fieldNode.asBoolean() == Boolean.parseBoolean(value);
+            return booleanValue != null && fieldNode.asBoolean() == booleanValue;
         }
 
         return false;
     }
-}
\ No newline at end of file
+
+    @Override
+    public CompiledFilter compile(Map<String, Integer> slots) {
+        int slot = CompilableFilter.slot(slots, field);
+        return fields -> switch (fields.kind(slot)) {
+            case RecordFields.TEXT -> fields.text(slot).equals(value);
+            case RecordFields.NUMBER -> fields.number(slot) == numericValue;
+            case RecordFields.BOOLEAN -> booleanValue != null && fields.bool(slot) == booleanValue;
+            default -> false;
+        };
+    }
+
+    // Same semantics as matches: a text, number or boolean equal to the literal
+    @Override
+    public Set<String> candidates(IndexLookup lookup) {
+        if (!lookup.isIndexed(field)) return null;
+
+        Set<String> ids = new HashSet<>(lookup.equalTo(field, value));
+        if (!Double.isNaN(numericValue)) {
+            ids.addAll(lookup.equalTo(field, numericValue));
+        }
+        if (booleanValue != null) {
+            ids.addAll(lookup.equalTo(field, booleanValue));
+        }
+        return ids;
+    }
+}
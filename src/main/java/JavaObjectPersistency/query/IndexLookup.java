@@ -0,0 +1,14 @@
+package JavaObjectPersistency.query;
+
+import java.util.Set;
+
+// Secondary indexes of one persistent class, as seen by the query planner
+public interface IndexLookup {
+    boolean isIndexed(String field);
+
+    // Ids of records whose field holds the key (a String, Double or Boolean)
+    Set<String> equalTo(String field, Object key);
+
+    // Ids of records whose numeric field lies strictly between the bounds
+    Set<String> between(String field, double from, double to);
+}
@@ -2,7 +2,10 @@ package JavaObjectPersistency.query;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
-class LessThanFilter implements Filter {
+import java.util.Map;
+import java.util.Set;
+
+class LessThanFilter implements CompilableFilter {
     private final String field;
     private final double value;
 
@@ -18,4 +21,15 @@ class LessThanFilter implements Filter {
 
         return fieldNode.asDouble() < value;
     }
-}
\ No newline at end of file
+
+    @Override
+    public CompiledFilter compile(Map<String, Integer> slots) {
+        int slot = CompilableFilter.slot(slots, field);
+        return fields -> fields.kind(slot) == RecordFields.NUMBER && fields.number(slot) < value;
+    }
+
+    @Override
+    public Set<String> candidates(IndexLookup lookup) {
+        return lookup.isIndexed(field) ? lookup.between(field, Double.NEGATIVE_INFINITY, value) : null;
+    }
+}
@@ -2,7 +2,9 @@ package JavaObjectPersistency.query;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
-class NotFilter implements Filter {
+import java.util.Map;
+
+class NotFilter implements CompilableFilter {
     private final Filter filter;
 
     public NotFilter(Filter filter) {
@@ -13,4 +15,10 @@ class NotFilter implements Filter {
     public boolean matches(JsonNode node) {
         return !filter.matches(node);
     }
-}
\ No newline at end of file
+
+    @Override
+    public CompiledFilter compile(Map<String, Integer> slots) {
+        CompiledFilter compiled = ((CompilableFilter) filter).compile(slots);
+        return fields -> !compiled.matches(fields);
+    }
+}
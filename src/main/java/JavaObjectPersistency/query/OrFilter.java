@@ -2,7 +2,11 @@ package JavaObjectPersistency.query;
 
 import com.fasterxml.jackson.databind.JsonNode;
 
-class OrFilter implements Filter {
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+class OrFilter implements CompilableFilter {
     private final Filter left;
     private final Filter right;
 
@@ -15,4 +19,23 @@ class OrFilter implements Filter {
     public boolean matches(JsonNode node) {
         return left.matches(node) || right.matches(node);
     }
-}
\ No newline at end of file
+
+    @Override
+    public CompiledFilter compile(Map<String, Integer> slots) {
+        CompiledFilter compiledLeft = ((CompilableFilter) left).compile(slots);
+        CompiledFilter compiledRight = ((CompilableFilter) right).compile(slots);
+        return fields -> compiledLeft.matches(fields) || compiledRight.matches(fields);
+    }
+
+    @Override
+    public Set<String> candidates(IndexLookup lookup) {
+        Set<String> leftIds = ((CompilableFilter) left).candidates(lookup);
+        if (leftIds == null) return null;
+        Set<String> rightIds = ((CompilableFilter) right).candidates(lookup);
+        if (rightIds == null) return null;
+
+        Set<String> ids = new HashSet<>(leftIds);
+        ids.addAll(rightIds);
+        return ids;
+    }
+}
@@ -0,0 +1,104 @@
+package JavaObjectPersistency.query;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Order of query results: the sort keys in turn, then the record id so that pages are stable.
+// Numbers sort before text and text before booleans; records without a scalar value sort last in either direction.
+public final class Ordering {
+    private final List<SortKey> keys;
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    public Ordering(List<SortKey> keys) {
+        this.keys = List.copyOf(keys);
+        for (SortKey key : this.keys) {
+            slots.putIfAbsent(key.field(), slots.size());
+        }
+    }
+
+    public List<SortKey> keys() {
+        return keys;
+    }
+
+    // Values of the sort fields of a record, the parser must be positioned at its START_OBJECT token
+    public Object[] read(JsonParser parser) throws IOException {
+        Object[] fieldValues = new Object[slots.size()];
+        if (parser.currentToken() != JsonToken.START_OBJECT) return values(fieldValues);
+
+        int remaining = fieldValues.length;
+        while (remaining > 0 && parser.nextToken() == JsonToken.FIELD_NAME) {
+            Integer slot = slots.get(parser.currentName());
+            parser.nextToken();
+            if (slot == null) {
+                parser.skipChildren();
+                continue;
+            }
+            fieldValues[slot] = switch (parser.currentToken()) {
+                case VALUE_STRING -> parser.getText();
+                case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> normalize(parser.getDoubleValue());
+                case VALUE_TRUE, VALUE_FALSE -> parser.getBooleanValue();
+                default -> {
+                    parser.skipChildren();
+                    yield null;
+                }
+            };
+            remaining--;
+        }
+        return values(fieldValues);
+    }
+
+    // One value per sort key, a field listed twice appears twice
+    private Object[] values(Object[] fieldValues) {
+        Object[] values = new Object[keys.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = fieldValues[slots.get(keys.get(i).field())];
+        }
+        return values;
+    }
+
+    public int compare(Object[] left, String leftId, Object[] right, String rightId) {
+        for (int i = 0; i < keys.size(); i++) {
+            Object a = left[i];
+            Object b = right[i];
+            if (a == null || b == null) {
+                if (a != b) return a == null ? 1 : -1;
+                continue;
+            }
+            int result = compareValues(a, b);
+            if (result != 0) {
+                return keys.get(i).descending() ? -result : result;
+            }
+        }
+        return leftId.compareTo(rightId);
+    }
+
+    // Order of non-null scalar values: Double, then String, then Boolean
+    public static int compareValues(Object left, Object right) {
+        int kinds = Integer.compare(rank(left), rank(right));
+        if (kinds != 0) return kinds;
+        return switch (left) {
+            case Double number -> Double.compare(number, (Double) right);
+            case String text -> text.compareTo((String) right);
+            case Boolean bool -> Boolean.compare(bool, (Boolean) right);
+            default -> 0;
+        };
+    }
+
+    private static int rank(Object value) {
+        return switch (value) {
+            case Double number -> 0;
+            case String text -> 1;
+            default -> 2;
+        };
+    }
+
+    // -0.0 sorts and compares equal to 0.0, like in the indexes
+    private static Double normalize(double value) {
+        return value == 0 ? 0.0 : value;
+    }
+}
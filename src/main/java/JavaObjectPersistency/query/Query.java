@@ -3,9 +3,21 @@ package JavaObjectPersistency.query;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class Query implements Filter {
     private Filter rootFilter;
     private final String queryString;
+    // Compiled on first use; volatile so a query shared between threads sees a fully built evaluator
+    private volatile CompiledQuery compiled;
+    private final List<SortKey> orderBy = new ArrayList<>();
+    private int limit = -1;
+    private int offset;
     private static final ObjectMapper mapper = new ObjectMapper();
 
     public Query(String query) {
@@ -50,6 +62,73 @@ public class Query implements Filter {
         return rootFilter != null && rootFilter.matches(node);
     }
 
+    // Sorts the results by a stored field, ascending; called again it adds a key for equal values
+    public Query orderBy(String field) {
+        return orderBy(field, false);
+    }
+
+    public Query orderBy(String field, boolean descending) {
+        orderBy.add(new SortKey(field, descending));
+        return this;
+    }
+
+    // Returns at most limit results
+    public Query limit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    // Skips the first offset results
+    public Query offset(int offset) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+        this.offset = offset;
+        return this;
+    }
+
+    public List<SortKey> getOrderBy() {
+        return Collections.unmodifiableList(orderBy);
+    }
+
+    // -1 if there is no limit
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    // Turns the filter tree into an evaluator over record tokens, compiled once per query
+    public CompiledQuery compile() {
+        CompiledQuery result = compiled;
+        if (result == null) {
+            // Two threads may both compile, either result is equivalent
+            Map<String, Integer> slots = new LinkedHashMap<>();
+            result = new CompiledQuery(compileFilter(slots), slots);
+            compiled = result;
+        }
+        return result;
+    }
+
+    // Evaluator whose fields are registered in the given slots, so other readers can share the same pass
+    CompiledFilter compileFilter(Map<String, Integer> slots) {
+        return rootFilter != null
+                ? ((CompilableFilter) rootFilter).compile(slots)
+                : fields -> false;
+    }
+
+    // Ids that may match according to the secondary indexes, or null if the query needs a full scan.
+    // Candidates still have to be checked with matches.
+    public Set<String> candidates(IndexLookup lookup) {
+        if (rootFilter == null) return Collections.emptySet();
+        return ((CompilableFilter) rootFilter).candidates(lookup);
+    }
+
     public boolean validateObject(String serializedJsonString) {
         try {
             JsonNode node = mapper.readTree(serializedJsonString);
@@ -0,0 +1,64 @@
+package JavaObjectPersistency.query;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+// Scalar values of the fields referenced by a query, read from one record.
+// Each referenced field has a slot; fields that are missing or not scalar stay OTHER.
+final class RecordFields {
+    static final byte OTHER = 0;
+    static final byte TEXT = 1;
+    static final byte NUMBER = 2;
+    static final byte BOOLEAN = 3;
+
+    private final byte[] kinds;
+    private final String[] texts;
+    private final double[] numbers;
+    private final boolean[] booleans;
+
+    RecordFields(int size) {
+        this.kinds = new byte[size];
+        this.texts = new String[size];
+        this.numbers = new double[size];
+        this.booleans = new boolean[size];
+    }
+
+    // Reads the current value token into the slot, skipping structured values
+    void read(int slot, JsonParser parser) throws IOException {
+        switch (parser.currentToken()) {
+            case VALUE_STRING -> {
+                kinds[slot] = TEXT;
+                texts[slot] = parser.getText();
+            }
+            case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> {
+                kinds[slot] = NUMBER;
+                numbers[slot] = parser.getDoubleValue();
+            }
+            case VALUE_TRUE, VALUE_FALSE -> {
+                kinds[slot] = BOOLEAN;
+                booleans[slot] = parser.getBooleanValue();
+            }
+            default -> {
+                kinds[slot] = OTHER;
+                parser.skipChildren();
+            }
+        }
+    }
+
+    byte kind(int slot) {
+        return kinds[slot];
+    }
+
+    String text(int slot) {
+        return texts[slot];
+    }
+
+    double number(int slot) {
+        return numbers[slot];
+    }
+
+    boolean bool(int slot) {
+        return booleans[slot];
+    }
+}
@@ -0,0 +1,4 @@
+package JavaObjectPersistency.query;
+
+// One key of Query.orderBy: a top-level stored field and its direction
+public record SortKey(String field, boolean descending) {}
@@ -0,0 +1,88 @@
+package JavaObjectPersistency.store;
+
+// Limits and policies of the identity cache of a JsonStore. The default keeps every object
+// strongly referenced without a limit.
+public class CacheConfig {
+    public enum EvictionPolicy {
+        // Evicts the least recently used entry
+        LRU,
+        // LRU order, but a new entry only replaces the LRU victim if it has been requested more often
+        FREQUENCY
+    }
+
+    public enum ValueReferences {
+        STRONG,
+        // Entries disappear once the application no longer references the object
+        WEAK,
+        // Entries are kept until the JVM runs low on memory
+        SOFT
+    }
+
+    private long maximumSize = Long.MAX_VALUE;
+    private long maximumWeight = Long.MAX_VALUE;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+    private ValueReferences valueReferences = ValueReferences.STRONG;
+    private int concurrencyLevel = 16;
+
+    public CacheConfig maximumSize(long maximumSize) {
+        if (maximumSize < 0) {
+            throw new IllegalArgumentException("maximumSize must not be negative");
+        }
+        this.maximumSize = maximumSize;
+        return this;
+    }
+
+    // Budget in estimated bytes of the cached objects
+    public CacheConfig maximumWeight(long maximumWeight) {
+        if (maximumWeight < 0) {
+            throw new IllegalArgumentException("maximumWeight must not be negative");
+        }
+        this.maximumWeight = maximumWeight;
+        return this;
+    }
+
+    public CacheConfig evictionPolicy(EvictionPolicy evictionPolicy) {
+        if (evictionPolicy == null) {
+            throw new IllegalArgumentException("evictionPolicy must not be null");
+        }
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    public CacheConfig valueReferences(ValueReferences valueReferences) {
+        if (valueReferences == null) {
+            throw new IllegalArgumentException("valueReferences must not be null");
+        }
+        this.valueReferences = valueReferences;
+        return this;
+    }
+
+    // Number of independently locked cache segments, the limits are split evenly between them
+    public CacheConfig concurrencyLevel(int concurrencyLevel) {
+        if (concurrencyLevel < 1) {
+            throw new IllegalArgumentException("concurrencyLevel must be positive");
+        }
+        this.concurrencyLevel = concurrencyLevel;
+        return this;
+    }
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getMaximumWeight() {
+        return maximumWeight;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public ValueReferences getValueReferences() {
+        return valueReferences;
+    }
+
+    public int getConcurrencyLevel() {
+        return concurrencyLevel;
+    }
+}
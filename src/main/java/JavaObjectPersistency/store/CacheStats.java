@@ -0,0 +1,8 @@
+package JavaObjectPersistency.store;
+
+public record CacheStats(long hits, long misses, long evictions, long size, long weight) {
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 1.0 : (double) hits / requests;
+    }
+}
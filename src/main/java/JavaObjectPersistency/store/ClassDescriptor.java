@@ -0,0 +1,145 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.annotations.Persistent;
+import JavaObjectPersistency.annotations.Transient;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Metadata of a @Persistent class, resolved once per class and shared by all stores
+public final class ClassDescriptor {
+    private static final ClassValue<ClassDescriptor> descriptors = new ClassValue<>() {
+        @Override
+        protected ClassDescriptor computeValue(Class<?> type) {
+            return new ClassDescriptor(type);
+        }
+    };
+
+    private static final ClassValue<Boolean> persistent = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(Persistent.class);
+        }
+    };
+
+    private final Class<?> type;
+    private final MethodHandle constructor; // ()Object, null if there is no default constructor
+    private final FieldDescriptor idField;
+    private final List<FieldDescriptor> fields;
+    private final Map<String, FieldDescriptor> fieldsByJsonName;
+    private final List<String> indexedFields;
+
+    private ClassDescriptor(Class<?> type) {
+        this.type = type;
+
+        // Superclass fields first, in declaration order
+        Deque<Class<?>> hierarchy = new ArrayDeque<>();
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            hierarchy.addFirst(c);
+        }
+
+        List<FieldDescriptor> fields = new ArrayList<>();
+        Map<String, FieldDescriptor> fieldsByJsonName = new HashMap<>();
+        FieldDescriptor idField = null;
+        try {
+            for (Class<?> c : hierarchy) {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(c, MethodHandles.lookup());
+                for (Field field : c.getDeclaredFields()) {
+                    if (field.isAnnotationPresent(Transient.class)) continue;
+                    if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+
+                    FieldDescriptor descriptor = new FieldDescriptor(field, lookup);
+                    if (descriptor.isId() && idField == null) {
+                        idField = descriptor;
+                    }
+                    fields.add(descriptor);
+                    fieldsByJsonName.put(descriptor.getJsonName(), descriptor);
+                }
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot access fields of class " + type.getName(), e);
+        }
+        this.idField = idField;
+        this.fields = Collections.unmodifiableList(fields);
+        this.fieldsByJsonName = Collections.unmodifiableMap(fieldsByJsonName);
+        this.indexedFields = fields.stream()
+                .filter(FieldDescriptor::isIndexed)
+                .map(FieldDescriptor::getJsonName)
+                .toList();
+        this.constructor = findConstructor(type);
+    }
+
+    private static MethodHandle findConstructor(Class<?> type) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+            return lookup.findConstructor(type, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    public static ClassDescriptor of(Class<?> type) {
+        return descriptors.get(type);
+    }
+
+    public static boolean isPersistent(Class<?> type) {
+        return persistent.get(type);
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public FieldDescriptor getIdField() {
+        if (idField == null) {
+            throw new IllegalArgumentException("No @Id field found in class " + type.getName());
+        }
+        return idField;
+    }
+
+    public Object getId(Object obj) {
+        return getIdField().get(obj);
+    }
+
+    public void setId(Object obj, Object id) {
+        getIdField().set(obj, id);
+    }
+
+    // All non-transient fields, including the id and inherited fields
+    public List<FieldDescriptor> getFields() {
+        return fields;
+    }
+
+    public FieldDescriptor getField(String jsonName) {
+        return fieldsByJsonName.get(jsonName);
+    }
+
+    // Stored names of the @Indexed fields
+    public List<String> getIndexedFields() {
+        return indexedFields;
+    }
+
+    public Object newInstance() {
+        if (constructor == null) {
+            throw new IllegalArgumentException("No default constructor in class " + type.getName());
+        }
+        try {
+            return (Object) constructor.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Error creating instance of " + type.getName(), e);
+        }
+    }
+}
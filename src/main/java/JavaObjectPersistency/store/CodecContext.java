@@ -0,0 +1,48 @@
+package JavaObjectPersistency.store;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+// Store services used by generated codecs for references, the identity cache and values they cannot handle inline
+public interface CodecContext {
+    // Writes the id of a @Persistent object, or null
+    void writeReference(JsonGenerator generator, Object value) throws IOException;
+
+    // Writes the ids of a collection of @Persistent objects as an array, or null. A lazy collection
+    // that was never loaded is written from its ids.
+    void writeReferences(JsonGenerator generator, Collection<?> values) throws IOException;
+
+    // Writes any value through the object mapper, @Persistent objects are written as their id
+    void writeValue(JsonGenerator generator, Object value) throws IOException;
+
+    // Passes the referenced object to the setter, possibly only after the rest of the batch of records is decoded
+    <T> void readReference(JsonParser parser, Class<T> type, Consumer<? super T> setter) throws IOException;
+
+    // Ref<T> that loads the target on first access, null if the value is null
+    <T> Ref<T> readRef(JsonParser parser, Class<T> type) throws IOException;
+
+    // Values of @Lazy collection fields: the ids of the current array, the elements are loaded on first access
+    <E> List<E> readLazyList(JsonParser parser, Class<E> elementType) throws IOException;
+
+    <E> Set<E> readLazySet(JsonParser parser, Class<E> elementType) throws IOException;
+
+    // Adds the elements of the current array to the target, returns false if the value is null.
+    // References are added once the batch of records is decoded.
+    <E> boolean readCollection(JsonParser parser, Class<E> elementType, Collection<E> target) throws IOException;
+
+    <V> V readValue(JsonParser parser, Class<V> type) throws IOException;
+
+    // Instance already known to the store under this id, or null
+    <T> T cached(Class<T> type, Object id);
+
+    void register(Object obj);
+
+    // Skips the rest of the current object
+    void skipObject(JsonParser parser) throws IOException;
+}
@@ -0,0 +1,133 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.annotations.FieldAlias;
+import JavaObjectPersistency.annotations.Id;
+import JavaObjectPersistency.annotations.Indexed;
+import JavaObjectPersistency.annotations.Lazy;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Collection;
+
+// Resolved metadata and accessors of one persistent field
+public final class FieldDescriptor {
+    private final String name;
+    private final String jsonName;
+    private final Class<?> type;
+    private final Type genericType;
+    private final boolean id;
+    private final boolean indexed;
+    private final boolean collection;
+    private final boolean ref;
+    private final boolean lazy;
+    // Element type of a collection or target type of a Ref, null for other fields or if it is unknown
+    private final Class<?> elementType;
+    private final MethodHandle getter; // (Object)Object
+    private final MethodHandle setter; // (Object,Object)void
+
+    FieldDescriptor(Field field, MethodHandles.Lookup lookup) throws IllegalAccessException {
+        field.setAccessible(true);
+        this.name = field.getName();
+        this.jsonName = field.getAnnotation(FieldAlias.class) != null
+                ? field.getAnnotation(FieldAlias.class).value()
+                : field.getName();
+        this.type = field.getType();
+        this.genericType = field.getGenericType();
+        this.id = field.isAnnotationPresent(Id.class);
+        this.indexed = field.isAnnotationPresent(Indexed.class);
+        this.collection = Collection.class.isAssignableFrom(field.getType());
+        this.ref = field.getType() == Ref.class;
+        this.elementType = collection || ref ? resolveTypeArgument(field) : null;
+        this.lazy = field.isAnnotationPresent(Lazy.class);
+        if (lazy && !(collection && elementType != null && ClassDescriptor.isPersistent(elementType)
+                && (type.isAssignableFrom(LazyList.class) || type.isAssignableFrom(LazySet.class)))) {
+            throw new IllegalArgumentException("@Lazy field " + name + " must be a List, Set or Collection of a @Persistent class,"
+                    + " declare single references as Ref<T>");
+        }
+        this.getter = lookup.unreflectGetter(field)
+                .asType(MethodType.methodType(Object.class, Object.class));
+        this.setter = lookup.unreflectSetter(field)
+                .asType(MethodType.methodType(void.class, Object.class, Object.class));
+    }
+
+    private static Class<?> resolveTypeArgument(Field field) {
+        Type genericType = field.getGenericType();
+        if (genericType instanceof ParameterizedType pt) {
+            Type[] typeArgs = pt.getActualTypeArguments();
+            if (typeArgs.length > 0 && typeArgs[0] instanceof Class<?> clazz) {
+                return clazz;
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Name of the field in the stored record, the @FieldAlias value if present
+    public String getJsonName() {
+        return jsonName;
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    public Type getGenericType() {
+        return genericType;
+    }
+
+    public boolean isId() {
+        return id;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public boolean isCollection() {
+        return collection;
+    }
+
+    // Ref<T> field, the target is loaded on first access
+    public boolean isRef() {
+        return ref;
+    }
+
+    // Collection field marked @Lazy
+    public boolean isLazy() {
+        return lazy;
+    }
+
+    public Class<?> getElementType() {
+        if (elementType == null) {
+            throw new IllegalArgumentException("Could not resolve element type for field: " + name);
+        }
+        return elementType;
+    }
+
+    public Object get(Object target) {
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Error reading field " + name, e);
+        }
+    }
+
+    public void set(Object target, Object value) {
+        try {
+            setter.invokeExact(target, value);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException("Error writing field " + name, e);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package JavaObjectPersistency.store;
+
+// When the writes of saveAsync are forced to disk
+public enum FsyncPolicy {
+    // Left to the operating system, like the writes of save()
+    NONE,
+    // Each group commit is forced to disk before its futures complete
+    COMMIT
+}
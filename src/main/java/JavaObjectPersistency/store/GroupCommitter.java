@@ -0,0 +1,127 @@
+package JavaObjectPersistency.store;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Commits the saves of JsonStore.saveAsync on a virtual thread. Saves that arrive while a commit is running,
+// or within the flush interval after the first one, are written together with one saveAll, so many concurrent
+// callers share a single write per class and a single fsync.
+final class GroupCommitter {
+    private record PendingSave(Object object, IdGenType mode, CompletableFuture<Void> done) {}
+
+    private static final PendingSave STOP = new PendingSave(null, null, null);
+
+    private final JsonStore store;
+    private final BlockingQueue<PendingSave> queue = new LinkedBlockingQueue<>();
+    private final Duration flushInterval;
+    private final FsyncPolicy fsyncPolicy;
+    private final Thread thread;
+    private boolean stopped; // guarded by this
+
+    GroupCommitter(JsonStore store, Duration flushInterval, FsyncPolicy fsyncPolicy) {
+        this.store = store;
+        this.flushInterval = flushInterval;
+        this.fsyncPolicy = fsyncPolicy;
+        this.thread = Thread.ofVirtual().name("group-commit").start(this::run);
+    }
+
+    synchronized CompletableFuture<Void> submit(Object object, IdGenType mode) {
+        if (stopped) {
+            return CompletableFuture.failedFuture(new IllegalStateException("Store is closed"));
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        queue.add(new PendingSave(object, mode, done));
+        return done;
+    }
+
+    // Commits the saves submitted so far and stops the thread
+    void close() {
+        synchronized (this) {
+            if (stopped) return;
+            stopped = true;
+            queue.add(STOP);
+        }
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<PendingSave> group = new ArrayList<>();
+        boolean stopping = false;
+        while (!stopping) {
+            try {
+                group.add(queue.take());
+                if (group.getFirst() != STOP && flushInterval.isPositive()) {
+                    Thread.sleep(flushInterval);
+                }
+            } catch (InterruptedException e) {
+                // Only close() stops the committer, pending saves must not be lost
+            }
+            queue.drainTo(group);
+            // Nothing is queued after STOP
+            stopping = group.remove(STOP);
+            if (!group.isEmpty()) {
+                commit(group);
+            }
+            group.clear();
+        }
+    }
+
+    private void commit(List<PendingSave> group) {
+        Map<IdGenType, List<PendingSave>> byMode = new LinkedHashMap<>();
+        for (PendingSave save : group) {
+            byMode.computeIfAbsent(save.mode(), k -> new ArrayList<>()).add(save);
+        }
+
+        List<PendingSave> saved = new ArrayList<>(group.size());
+        for (Map.Entry<IdGenType, List<PendingSave>> entry : byMode.entrySet()) {
+            List<Object> objects = new ArrayList<>(entry.getValue().size());
+            for (PendingSave save : entry.getValue()) {
+                objects.add(save.object());
+            }
+            try {
+                store.saveAll(objects, entry.getKey());
+                saved.addAll(entry.getValue());
+            } catch (Exception e) {
+                // One failing object must not fail the whole group, so its saves are retried one by one
+                for (PendingSave save : entry.getValue()) {
+                    try {
+                        store.save(save.object(), save.mode());
+                        saved.add(save);
+                    } catch (Exception failure) {
+                        save.done().completeExceptionally(failure);
+                    }
+                }
+            }
+        }
+
+        if (fsyncPolicy == FsyncPolicy.COMMIT && !saved.isEmpty()) {
+            try {
+                store.syncStorages();
+            } catch (Exception e) {
+                for (PendingSave save : saved) {
+                    save.done().completeExceptionally(e);
+                }
+                return;
+            }
+        }
+        for (PendingSave save : saved) {
+            save.done().complete(null);
+        }
+    }
+}
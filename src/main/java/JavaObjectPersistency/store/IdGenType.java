@@ -2,6 +2,7 @@ package JavaObjectPersistency.store;
 
 import JavaObjectPersistency.annotations.Id;
 import JavaObjectPersistency.classes.IntIdGenerator;
+import JavaObjectPersistency.classes.TimeOrderedUUIDGenerator;
 import JavaObjectPersistency.classes.UUIDGenerator;
 
 import java.util.EnumSet;
@@ -11,7 +12,9 @@ import java.util.Map;
 
 public enum IdGenType {
     UUID(new UUIDGenerator()),
-    INT(new IntIdGenerator());
+    INT(new IntIdGenerator()),
+    // UUIDv7, ids sort by creation time
+    UUID_V7(new TimeOrderedUUIDGenerator());
 
     private static final Map<Object, IdGenType> lookup
             = new HashMap<Object, IdGenType>();
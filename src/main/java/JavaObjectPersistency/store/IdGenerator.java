@@ -1,9 +1,25 @@
 package JavaObjectPersistency.store;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 public interface IdGenerator {
     default Object generateId(Object obj) throws IOException {
         return null;
     }
+
+    // Generators that depend on stored data override this one
+    default Object generateId(Object obj, JsonStore store) throws IOException {
+        return generateId(obj);
+    }
+
+    // Ids for several new objects of one class at once, in the order of the list
+    default List<Object> generateIds(List<?> objects, JsonStore store) throws IOException {
+        List<Object> ids = new ArrayList<>(objects.size());
+        for (Object obj : objects) {
+            ids.add(generateId(obj, store));
+        }
+        return ids;
+    }
 }
@@ -0,0 +1,120 @@
+package JavaObjectPersistency.store;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Numeric id sequence of one persistent class. The file holds a high-water mark: no value at or above it
+// has been handed out. Values come from an AtomicLong and the mark is moved a whole block ahead at a time,
+// so the file is written once per block; after a restart the unused rest of the last block is skipped.
+final class IdSequence implements Closeable {
+    private final FileChannel channel;
+    private final int blockSize;
+    private final AtomicLong next;
+    private volatile long reservedUntil;
+
+    private IdSequence(FileChannel channel, int blockSize, long start) {
+        this.channel = channel;
+        this.blockSize = blockSize;
+        this.next = new AtomicLong(start);
+        this.reservedUntil = start;
+    }
+
+    // Continues after the stored mark, or after the largest numeric id in the storage if there is no mark yet
+    static IdSequence open(Path file, StorageEngine storage, int blockSize) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long start;
+            if (channel.size() >= Long.BYTES) {
+                ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, buffer.position()) < 0) {
+                        throw new EOFException("Unexpected end of " + file);
+                    }
+                }
+                start = buffer.flip().getLong();
+            } else {
+                start = maxNumericId(storage) + 1;
+            }
+            return new IdSequence(channel, blockSize, Math.max(start, 1));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static long maxNumericId(StorageEngine storage) throws IOException {
+        long max = 0;
+        try (RecordCursor cursor = storage.scan()) {
+            while (cursor.next()) {
+                try {
+                    max = Math.max(max, Long.parseLong(cursor.id()));
+                } catch (NumberFormatException e) {
+                    // not generated by a sequence
+                }
+            }
+        }
+        return max;
+    }
+
+    long next() throws IOException {
+        return reserve(1);
+    }
+
+    // Reserves count consecutive values and returns the first one
+    long reserve(int count) throws IOException {
+        long first = next.getAndAdd(count);
+        long end = first + count;
+        if (end > reservedUntil) {
+            synchronized (this) {
+                if (end > reservedUntil) {
+                    long mark = end + blockSize;
+                    writeMark(mark);
+                    reservedUntil = mark;
+                }
+            }
+        }
+        return first;
+    }
+
+    // Makes sure id is never handed out again, used when a record is deleted. Without a stored mark
+    // a restart would continue after the largest id left in the storage, so the mark is written here too.
+    void skipPast(long id) throws IOException {
+        long end = next.accumulateAndGet(id + 1, Math::max);
+        if (end >= reservedUntil) {
+            synchronized (this) {
+                if (end >= reservedUntil) {
+                    long mark = end + blockSize;
+                    writeMark(mark);
+                    reservedUntil = mark;
+                }
+            }
+        }
+    }
+
+    // Starts over at 1, used when the storage of the class is cleared
+    synchronized void reset() throws IOException {
+        writeMark(1);
+        next.set(1);
+        reservedUntil = 1;
+    }
+
+    private void writeMark(long mark) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES).putLong(mark).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
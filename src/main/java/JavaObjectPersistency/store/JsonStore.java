@@ -1,37 +1,100 @@
 package JavaObjectPersistency.store;
 
-import JavaObjectPersistency.annotations.FieldAlias;
-import JavaObjectPersistency.annotations.Id;
-import JavaObjectPersistency.annotations.Persistent;
-import JavaObjectPersistency.annotations.Transient;
+import JavaObjectPersistency.classes.TimeOrderedUUIDGenerator;
+import JavaObjectPersistency.query.Aggregate;
+import JavaObjectPersistency.query.CompiledQuery;
+import JavaObjectPersistency.query.Ordering;
 import JavaObjectPersistency.query.Query;
+import JavaObjectPersistency.query.SortKey;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.module.SimpleModule;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.lang.reflect.ParameterizedType;
-import java.lang.reflect.Type;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-public class JsonStore {
-    private final ObjectMapper mapper = new ObjectMapper();
-    private final Map<Class<?>, Map<Object, Object>> objectCache = new HashMap<>();
-    private final ThreadLocal<Set<Object>> loadingObjects = ThreadLocal.withInitial(HashSet::new);
-    private IdGenType idGenStrategy; // Store the ID generation strategy
+// Safe to share between threads. Writes lock only the class of the saved record, reads do not lock
+// beyond the storage engine itself, so threads working on different classes never wait for each other.
+public class JsonStore implements AutoCloseable {
+    // Values an id sequence reserves per write of its high-water mark
+    private static final int ID_BLOCK_SIZE = 100;
+    private static final String SHARDS_PREFIX = "shards-";
+    // Records stream() decodes together, so their references are read with one lookup per class
+    private static final int DECODE_BATCH_SIZE = 1000;
+    // Records updateWhere patches under one write lock
+    private static final int PATCH_BATCH_SIZE = 1000;
 
+    // UUIDs are written as text in every format, binary formats would otherwise store them as 16 raw bytes
+    private final ObjectMapper mapper = new ObjectMapper()
+            .registerModule(new SimpleModule().addSerializer(UUID.class, ToStringSerializer.instance));
+    private final ObjectCache objectCache;
+    private final Map<Class<?>, StorageEngine> storages = new ConcurrentHashMap<>();
+    private final Map<Class<?>, SecondaryIndexes> indexes = new ConcurrentHashMap<>();
+    private final Map<Class<?>, IdSequence> sequences = new ConcurrentHashMap<>();
+    // One lock per persistent class: writers of a record and its index entries take the write lock,
+    // index queries take the read lock so they see a record and its index entries together
+    private final Map<Class<?>, ReentrantReadWriteLock> locks = new ConcurrentHashMap<>();
+    // Objects this thread is still filling in, published to the shared cache when the outermost load completes
+    private final ThreadLocal<Map<String, Object>> pendingObjects = ThreadLocal.withInitial(HashMap::new);
+    // References of the records this thread is decoding, null when it is not decoding
+    private final ThreadLocal<ReferenceBatch> referenceBatch = new ThreadLocal<>();
+    // Fingerprints of the records this thread decoded, given to the cache when the outermost load completes
+    private final ThreadLocal<Map<Object, Long>> pendingFingerprints = ThreadLocal.withInitial(IdentityHashMap::new);
+    // Counts storage writes, a load only keeps the fingerprints it read if no write happened meanwhile
+    private final AtomicLong writeCount = new AtomicLong();
+    private final CodecContext codecContext = new StoreCodecContext();
+    private volatile IdGenType idGenStrategy; // Store the ID generation strategy
+    private volatile StorageFormat storageFormat = StorageFormat.JSON;
+    private final Map<Class<?>, StorageFormat> classFormats = new ConcurrentHashMap<>();
+    private volatile boolean compression;
+    private volatile int shardCount = 1;
+    private final Map<Class<?>, Integer> classShardCounts = new ConcurrentHashMap<>();
+    private volatile Duration flushInterval = Duration.ZERO;
+    private volatile FsyncPolicy fsyncPolicy = FsyncPolicy.COMMIT;
+    private GroupCommitter groupCommitter; // guarded by this, started by the first saveAsync
+    // Saved objects not written yet, null unless write-behind is enabled
+    private volatile WriteBuffer writeBuffer;
+    // Flushes run one at a time, so an older state of an object cannot overwrite a newer one
+    private final Object flushLock = new Object();
+
+
+    // Constructor that accepts the ID generation strategy and the identity cache limits
+    public JsonStore(IdGenType idGenStrategy, CacheConfig cacheConfig) {
+        this.idGenStrategy = idGenStrategy;
+        this.objectCache = new ObjectCache(cacheConfig);
+    }
 
     // Constructor that accepts the ID generation strategy
     public JsonStore(IdGenType idGenStrategy) {
-        this.idGenStrategy = idGenStrategy;
+        this(idGenStrategy, new CacheConfig());
     }
 
     // Default constructor with a default strategy
     public JsonStore() {
-        this.idGenStrategy = IdGenType.UUID; // Default to UUID
+        this(IdGenType.UUID); // Default to UUID
     }
 
     // Method to change the strategy at runtime if needed
@@ -39,10 +102,237 @@ public class JsonStore {
         this.idGenStrategy = idGenStrategy;
     }
 
+    // Format of newly written records; existing records stay readable in whatever format they have
+    public void setStorageFormat(StorageFormat storageFormat) {
+        this.storageFormat = storageFormat;
+    }
+
+    // Overrides the store-wide format for one class
+    public void setStorageFormat(Class<?> type, StorageFormat storageFormat) {
+        classFormats.put(type, storageFormat);
+    }
+
+    public StorageFormat getStorageFormat(Class<?> type) {
+        return classFormats.getOrDefault(type, storageFormat);
+    }
+
+    // Rewrites sealed log segments as deflated blocks in the background. Uncompressed and compressed
+    // segments stay readable side by side, so this can be switched at any time.
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+        for (StorageEngine storage : storages.values()) {
+            if (storage instanceof LogStorageEngine log) {
+                log.setCompression(compression);
+            } else if (storage instanceof ShardedStorageEngine sharded) {
+                sharded.setCompression(compression);
+            }
+        }
+    }
+
+    // Number of hash partitions the records of a class are spread over, 1 keeps a single log.
+    // Takes effect when the storage of a class is opened; records stored with another count are moved over then.
+    public void setShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        this.shardCount = shardCount;
+    }
+
+    public void setShardCount(Class<?> type, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        classShardCounts.put(type, shardCount);
+    }
+
+    public int getShardCount(Class<?> type) {
+        return classShardCounts.getOrDefault(type, shardCount);
+    }
+
+    // How long saveAsync waits after a save arrives for others to commit with it. Zero commits at once,
+    // saves that arrive during a commit still share the next one.
+    public void setFlushInterval(Duration flushInterval) {
+        if (flushInterval.isNegative()) {
+            throw new IllegalArgumentException("flushInterval must not be negative");
+        }
+        this.flushInterval = flushInterval;
+        stopGroupCommitter();
+    }
+
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+        this.fsyncPolicy = fsyncPolicy;
+        stopGroupCommitter();
+    }
+
+    // Pending saves are committed with the old settings, the next saveAsync starts a committer with the new ones
+    private void stopGroupCommitter() {
+        GroupCommitter committer;
+        synchronized (this) {
+            committer = groupCommitter;
+            groupCommitter = null;
+        }
+        if (committer != null) {
+            committer.close();
+        }
+    }
+
+    // Single-file format used before the log storage, only read for migration
     private String getFileName(Class<?> type) {
         return type.getSimpleName() + ".json";
     }
 
+    private String getStorageName(Class<?> type) {
+        return type.getSimpleName() + ".log";
+    }
+
+    private ReentrantReadWriteLock lockFor(Class<?> type) {
+        return locks.computeIfAbsent(type, k -> new ReentrantReadWriteLock());
+    }
+
+    private StorageEngine getStorage(Class<?> type) throws IOException {
+        StorageEngine storage = storages.get(type);
+        if (storage != null) {
+            return storage;
+        }
+
+        ReentrantReadWriteLock.WriteLock lock = lockFor(type).writeLock();
+        lock.lock();
+        try {
+            storage = storages.get(type);
+            if (storage == null) {
+                storage = openStorage(type);
+                migrateLegacyFile(type, storage);
+
+                List<String> indexedFields = ClassDescriptor.of(type).getIndexedFields();
+                if (!indexedFields.isEmpty()) {
+                    SecondaryIndexes typeIndexes = new SecondaryIndexes(
+                            Path.of(getStorageName(type), "indexes.json"), indexedFields);
+                    typeIndexes.open(storage, mapper);
+                    indexes.put(type, typeIndexes);
+                }
+                // Published last, so whoever sees the storage also sees its indexes
+                storages.put(type, storage);
+            }
+            return storage;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private StorageEngine openStorage(Class<?> type) throws IOException {
+        Path root = Path.of(getStorageName(type));
+        int shards = getShardCount(type);
+        StorageEngine storage = shards == 1
+                ? new LogStorageEngine(root, LogStorageEngine.DEFAULT_SEGMENT_SIZE, LogStorageEngine.DEFAULT_COMPACTION_THRESHOLD, compression)
+                : new ShardedStorageEngine(root.resolve(SHARDS_PREFIX + shards), shards, compression);
+        try {
+            migrateLayouts(root, shards, storage);
+        } catch (IOException | RuntimeException e) {
+            storage.close();
+            throw e;
+        }
+        return storage;
+    }
+
+    // Moves records stored with another shard count into the storage: the single log lives directly in
+    // <SimpleName>.log, N shards in <SimpleName>.log/shards-N
+    private void migrateLayouts(Path root, int shards, StorageEngine storage) throws IOException {
+        if (shards > 1) {
+            boolean unsharded;
+            try (DirectoryStream<Path> segments = Files.newDirectoryStream(root, "*.seg")) {
+                unsharded = segments.iterator().hasNext();
+            }
+            if (unsharded) {
+                try (LogStorageEngine previous = new LogStorageEngine(root)) {
+                    copyRecords(previous, storage);
+                }
+                LogStorageEngine.delete(root);
+            }
+        }
+        try (DirectoryStream<Path> layouts = Files.newDirectoryStream(root, SHARDS_PREFIX + "*")) {
+            for (Path layout : layouts) {
+                int count;
+                try {
+                    count = Integer.parseInt(layout.getFileName().toString().substring(SHARDS_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (count == shards || count < 1) continue;
+
+                try (ShardedStorageEngine previous = new ShardedStorageEngine(layout, count, false)) {
+                    copyRecords(previous, storage);
+                }
+                ShardedStorageEngine.delete(layout);
+            }
+        }
+    }
+
+    private static void copyRecords(StorageEngine source, StorageEngine target) throws IOException {
+        Map<String, byte[]> batch = new LinkedHashMap<>();
+        try (RecordCursor cursor = source.scan()) {
+            while (cursor.next()) {
+                batch.put(cursor.id(), cursor.data());
+                if (batch.size() == 1000) {
+                    target.putAll(batch);
+                    batch.clear();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            target.putAll(batch);
+        }
+    }
+
+    private Path getSequenceFile(Class<?> type) {
+        return Path.of(getStorageName(type), "id.seq");
+    }
+
+    private IdSequence getSequence(Class<?> type) throws IOException {
+        IdSequence sequence = sequences.get(type);
+        if (sequence != null) {
+            return sequence;
+        }
+
+        StorageEngine storage = getStorage(type);
+        ReentrantReadWriteLock.WriteLock lock = lockFor(type).writeLock();
+        lock.lock();
+        try {
+            sequence = sequences.get(type);
+            if (sequence == null) {
+                sequence = IdSequence.open(getSequenceFile(type), storage, ID_BLOCK_SIZE);
+                sequences.put(type, sequence);
+            }
+            return sequence;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reserves count consecutive values of the numeric id sequence of the class and returns the first one
+    public long reserveIds(Class<?> type, int count) throws IOException {
+        return getSequence(type).reserve(count);
+    }
+
+    // Imports an existing <SimpleName>.json table into the log and moves the old file aside
+    private void migrateLegacyFile(Class<?> type, StorageEngine storage) throws IOException {
+        File legacyFile = new File(getFileName(type));
+        if (!legacyFile.exists()) return;
+
+        if (storage.size() == 0) {
+            Map<String, Object> legacy = mapper.readValue(legacyFile, Map.class);
+            for (Map.Entry<String, Object> entry : legacy.entrySet()) {
+                storage.put(entry.getKey(), getStorageFormat(type).mapper().writeValueAsBytes(entry.getValue()));
+            }
+        }
+        Files.move(legacyFile.toPath(), Path.of(getFileName(type) + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Number of stored records of the given class
+    public int count(Class<?> type) throws IOException {
+        flushClass(type);
+        return getStorage(type).size();
+    }
+
     // Simplified save method that uses the stored strategy
     public void save(Object obj) throws Exception {
         // Delegate to the existing implementation
@@ -51,14 +341,13 @@ public class JsonStore {
 
     public void save(Object obj, IdGenType mode) throws Exception {
         // Проверяем, есть ли объект с таким же ID уже в кеше
-        Field idField = findIdField(obj.getClass());
-        idField.setAccessible(true);
-        Object id = idField.get(obj);
+        ClassDescriptor descriptor = ClassDescriptor.of(obj.getClass());
+        Object id = descriptor.getId(obj);
 
         // Если ID не установлен, генерируем новый
         if (id == null) {
-            Object uuid = mode.getGenerator().generateId(obj);
-            idField.set(obj, uuid);
+            Object uuid = mode.getGenerator().generateId(obj, this);
+            descriptor.setId(obj, uuid);
             id = uuid;
         }
 
@@ -72,82 +361,484 @@ public class JsonStore {
             obj = cachedObj;
         }
 
-        saveRecursive(obj, new HashSet<>(), mode);
+        saveGraph(obj, mode);
     }
 
-    private void copyFields(Object source, Object target) throws Exception {
-        Class<?> type = source.getClass();
-        for (Field field : type.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Transient.class)) continue;
-            if (field.isAnnotationPresent(Id.class)) continue; // ID не копируем
+    private void copyFields(Object source, Object target) {
+        for (FieldDescriptor field : ClassDescriptor.of(source.getClass()).getFields()) {
+            if (field.isId()) continue; // ID не копируем
 
-            field.setAccessible(true);
             field.set(target, field.get(source));
         }
     }
 
-    private void saveRecursive(Object obj, Set<Object> processed, IdGenType mode) throws Exception {
-        if (obj == null || processed.contains(obj)) {
-            return;
+    // Every object reachable from obj gets an id first, then the records are written referenced objects first
+    private void saveGraph(Object root, IdGenType mode) throws Exception {
+        Set<Object> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Object> ordered = new ArrayList<>();
+        collectGraph(root, reachable, ordered);
+
+        for (Object obj : ordered) {
+            ClassDescriptor descriptor = ClassDescriptor.of(obj.getClass());
+            if (descriptor.getId(obj) == null) {
+                descriptor.setId(obj, mode.getGenerator().generateId(obj, this));
+            }
+            // Добавляем объект в кеш до записи
+            addToCache(obj);
+        }
+        if (buffer(ordered)) return;
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            saveRecord(ordered.get(i));
         }
-        processed.add(obj);
+    }
 
-        String fileName = getFileName(obj.getClass());
-        File file = new File(fileName);
+    private void saveRecord(Object obj) throws Exception {
+        Object id = ClassDescriptor.of(obj.getClass()).getId(obj);
+        writeRecords(Map.of(obj.getClass(), Map.of(id.toString(), encode(obj))));
+    }
 
-        Field idField = findIdField(obj.getClass());
-        idField.setAccessible(true);
-        Object id = idField.get(obj);
+    public void saveAll(Collection<?> objects) throws Exception {
+        saveAll(objects, this.idGenStrategy);
+    }
 
-        if (id == null) {
-            Object uuid = mode.getGenerator().generateId(obj);
-            idField.set(obj, uuid);
-            id = uuid;
+    // Saves many object graphs at once: every reachable object is collected first, missing ids are
+    // generated per class in one call, and each class gets a single batched write.
+    public void saveAll(Collection<?> objects, IdGenType mode) throws Exception {
+        List<Object> roots = new ArrayList<>(objects.size());
+        for (Object obj : objects) {
+            roots.add(obj == null ? null : resolveCachedInstance(obj));
         }
 
-        // Добавляем объект в кеш до обработки зависимостей
-        addToCache(obj);
+        Set<Object> reachable = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Object> ordered = new ArrayList<>();
+        for (Object root : roots) {
+            collectGraph(root, reachable, ordered);
+        }
 
-        for (Field field : obj.getClass().getDeclaredFields()) {
-            if (field.isAnnotationPresent(Transient.class)) continue;
-            field.setAccessible(true);
+        Map<Class<?>, List<Object>> withoutId = new LinkedHashMap<>();
+        for (Object obj : ordered) {
+            if (ClassDescriptor.of(obj.getClass()).getId(obj) == null) {
+                withoutId.computeIfAbsent(obj.getClass(), k -> new ArrayList<>()).add(obj);
+            }
+        }
+        for (Map.Entry<Class<?>, List<Object>> entry : withoutId.entrySet()) {
+            ClassDescriptor descriptor = ClassDescriptor.of(entry.getKey());
+            List<Object> ids = mode.getGenerator().generateIds(entry.getValue(), this);
+            for (int i = 0; i < ids.size(); i++) {
+                descriptor.setId(entry.getValue().get(i), ids.get(i));
+            }
+        }
 
-            Object value = field.get(obj);
-            if (value != null) {
-                if (value.getClass().isAnnotationPresent(Persistent.class)) {
-                    saveRecursive(value, processed, mode);
-                } else if (value instanceof Collection<?> collection) {
-                    for (Object element : collection) {
-                        if (element != null && element.getClass().isAnnotationPresent(Persistent.class)) {
-                            saveRecursive(element, processed, mode);
+        for (Object obj : ordered) {
+            addToCache(obj);
+        }
+        if (buffer(ordered)) return;
+
+        // References are written as ids, so records can only be encoded once every id is known
+        Map<Class<?>, Map<String, byte[]>> records = new LinkedHashMap<>();
+        for (Object obj : ordered) {
+            String id = ClassDescriptor.of(obj.getClass()).getId(obj).toString();
+            records.computeIfAbsent(obj.getClass(), k -> new LinkedHashMap<>()).put(id, encode(obj));
+        }
+        writeRecords(records);
+    }
+
+    // One batched write per class, each with its index updates under the write lock of the class.
+    // A record whose fingerprint equals the one of the stored record is unchanged and not written again.
+    private void writeRecords(Map<Class<?>, Map<String, byte[]>> records) throws IOException {
+        for (Map.Entry<Class<?>, Map<String, byte[]>> entry : records.entrySet()) {
+            Class<?> type = entry.getKey();
+            StorageEngine storage = getStorage(type);
+            ReentrantReadWriteLock.WriteLock lock = lockFor(type).writeLock();
+            lock.lock();
+            try {
+                Map<String, byte[]> changed = new LinkedHashMap<>();
+                Map<String, Long> fingerprints = new HashMap<>();
+                for (Map.Entry<String, byte[]> record : entry.getValue().entrySet()) {
+                    long fingerprint = fingerprint(record.getValue());
+                    Long stored = objectCache.getFingerprint(type, record.getKey());
+                    if (stored == null || stored != fingerprint) {
+                        changed.put(record.getKey(), record.getValue());
+                        fingerprints.put(record.getKey(), fingerprint);
+                    }
+                }
+                if (changed.isEmpty()) continue;
+
+                writeCount.incrementAndGet();
+                try {
+                    storage.putAll(changed);
+                } catch (IOException | RuntimeException e) {
+                    // Some of the records may be written, their old fingerprints no longer hold
+                    for (String id : changed.keySet()) {
+                        objectCache.setFingerprint(type, id, null, false);
+                    }
+                    throw e;
+                }
+                SecondaryIndexes typeIndexes = indexes.get(type);
+                for (Map.Entry<String, byte[]> record : changed.entrySet()) {
+                    if (typeIndexes != null) {
+                        typeIndexes.update(record.getKey(), record.getValue());
+                    }
+                    objectCache.setFingerprint(type, record.getKey(), fingerprints.get(record.getKey()), false);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // 64-bit FNV-1a of a stored record. Records that differ in a single byte always get different fingerprints.
+    private static long fingerprint(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Write-behind mode: save() and saveAll() only buffer the objects, keyed by class and id, so an object saved
+    // many times is written once. The buffer is written when it holds maxObjects objects, every flushInterval
+    // (zero turns the timer off), on flush() and close(), and at JVM shutdown. Loads see buffered objects and
+    // queries flush the buffered objects of their class first. saveAsync futures complete once buffered.
+    public void enableWriteBehind(int maxObjects, Duration flushInterval) throws IOException {
+        if (maxObjects < 1) {
+            throw new IllegalArgumentException("maxObjects must be positive");
+        }
+        if (flushInterval.isNegative()) {
+            throw new IllegalArgumentException("flushInterval must not be negative");
+        }
+        disableWriteBehind();
+        writeBuffer = new WriteBuffer(this, maxObjects, flushInterval);
+    }
+
+    // Writes the buffered objects and returns to writing on every save
+    public void disableWriteBehind() throws IOException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer == null) return;
+        flush(buffer);
+        writeBuffer = null;
+        buffer.disarm();
+        // Objects buffered while the mode was being switched off
+        flush(buffer);
+    }
+
+    // Writes the objects buffered in write-behind mode
+    public void flush() throws IOException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            flush(buffer);
+        }
+    }
+
+    void flush(WriteBuffer buffer) throws IOException {
+        flush(buffer, null);
+    }
+
+    // Writes the buffered objects of one class, or of every class if type is null
+    private void flush(WriteBuffer buffer, Class<?> type) throws IOException {
+        if (buffer.isEmpty()) return;
+        synchronized (flushLock) {
+            Map<Class<?>, Map<String, WriteBuffer.Entry>> pending = buffer.snapshot(type);
+            Map<Class<?>, Map<String, byte[]>> records = new LinkedHashMap<>();
+            try {
+                for (Map.Entry<Class<?>, Map<String, WriteBuffer.Entry>> typeEntries : pending.entrySet()) {
+                    Map<String, byte[]> typeRecords = new LinkedHashMap<>();
+                    for (Map.Entry<String, WriteBuffer.Entry> entry : typeEntries.getValue().entrySet()) {
+                        typeRecords.put(entry.getKey(), encode(entry.getValue().object()));
+                    }
+                    records.put(typeEntries.getKey(), typeRecords);
+                }
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Error encoding buffered objects", e);
+            }
+            writeRecords(records);
+            buffer.written(pending);
+        }
+    }
+
+    // Queries read the storage, so the class must not have objects waiting in the buffer
+    private void flushClass(Class<?> type) throws IOException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            flush(buffer, type);
+        }
+    }
+
+    // In write-behind mode the objects are buffered instead of written, returns false otherwise
+    private boolean buffer(List<Object> objects) throws IOException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer == null) return false;
+
+        boolean full = false;
+        for (Object obj : objects) {
+            full |= buffer.add(obj, ClassDescriptor.of(obj.getClass()).getId(obj).toString());
+        }
+        if (full) {
+            flush(buffer);
+        }
+        return true;
+    }
+
+    public CompletableFuture<Void> saveAsync(Object obj) {
+        return saveAsync(obj, this.idGenStrategy);
+    }
+
+    // Saves on the group commit thread: concurrent saves are written together and the future completes once
+    // the group is written, and forced to disk with FsyncPolicy.COMMIT
+    public CompletableFuture<Void> saveAsync(Object obj, IdGenType mode) {
+        if (obj == null) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Cannot save null"));
+        }
+        GroupCommitter committer;
+        synchronized (this) {
+            if (groupCommitter == null) {
+                groupCommitter = new GroupCommitter(this, flushInterval, fsyncPolicy);
+            }
+            committer = groupCommitter;
+        }
+        return committer.submit(obj, mode);
+    }
+
+    // Forces the open storages to disk
+    void syncStorages() throws IOException {
+        for (StorageEngine storage : storages.values()) {
+            storage.sync();
+        }
+    }
+
+    // Runs a blocking call on its own virtual thread
+    private <T> CompletableFuture<T> async(Callable<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Thread.ofVirtual().start(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    // Same rule as save(): a new instance with the id of a cached object updates the cached object
+    private Object resolveCachedInstance(Object obj) {
+        Object id = ClassDescriptor.of(obj.getClass()).getId(obj);
+        Object cachedObj = id != null ? getFromCache(obj.getClass(), id) : null;
+        if (cachedObj != null && cachedObj != obj) {
+            copyFields(obj, cachedObj);
+            return cachedObj;
+        }
+        return obj;
+    }
+
+    // Objects reachable from obj in depth-first order, walked with an explicit stack so long chains of
+    // references cannot overflow the call stack
+    private void collectGraph(Object obj, Set<Object> reachable, List<Object> ordered) {
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(obj);
+        while (!stack.isEmpty()) {
+            Object current = stack.pop();
+            if (current == null || !reachable.add(current)) continue;
+            ordered.add(current);
+
+            // Pushed in reverse so they are visited in field order
+            List<Object> references = new ArrayList<>();
+            for (FieldDescriptor field : ClassDescriptor.of(current.getClass()).getFields()) {
+                Object value = reachableValue(field.get(current));
+                if (value != null) {
+                    if (ClassDescriptor.isPersistent(value.getClass())) {
+                        references.add(value);
+                    } else if (value instanceof Collection<?> collection) {
+                        for (Object element : collection) {
+                            if (element != null && ClassDescriptor.isPersistent(element.getClass())) {
+                                references.add(element);
+                            }
                         }
                     }
                 }
             }
+            for (int i = references.size() - 1; i >= 0; i--) {
+                stack.push(references.get(i));
+            }
+        }
+    }
+
+    // Lazy values that were never loaded cannot have been changed, so saving does not follow them
+    private static Object reachableValue(Object value) {
+        if (value instanceof Ref<?> ref) {
+            return ref.isLoaded() ? ref.get() : null;
+        }
+        if (value instanceof LazyCollection lazy && !lazy.isLoaded()) {
+            return null;
+        }
+        return value;
+    }
+
+    // Serializes with the generated codec when there is one, through a JsonNode tree otherwise
+    private byte[] encode(Object obj) throws Exception {
+        StorageFormat format = getStorageFormat(obj.getClass());
+        PersistentCodec<Object> codec = (PersistentCodec<Object>) PersistentCodecs.find(obj.getClass());
+        if (codec == null) {
+            return format.mapper().writeValueAsBytes(serializeObject(obj));
+        }
+        try (ByteArrayBuilder buffer = new ByteArrayBuilder();
+             JsonGenerator generator = format.factory().createGenerator(buffer)) {
+            codec.write(obj, generator, codecContext);
+            generator.flush();
+            return buffer.toByteArray();
+        }
+    }
+
+    private <T> T decode(Class<T> type, byte[] data) throws Exception {
+        return decodeAll(type, List.of(data)).getFirst();
+    }
+
+    // Decodes records of one class together. References that are not known yet are only collected while
+    // a record is decoded; afterwards they are read with one lookup per target class, round after round
+    // until the graph is complete, and wired in. Reference chains of any depth need no recursion.
+    private <T> List<T> decodeAll(Class<T> type, List<byte[]> records) throws Exception {
+        ReferenceBatch outer = referenceBatch.get();
+        ReferenceBatch batch = new ReferenceBatch();
+        referenceBatch.set(batch);
+        long writes = writeCount.get();
+        try {
+            List<T> objects = new ArrayList<>(records.size());
+            for (byte[] data : records) {
+                objects.add(decodeRecord(type, data));
+            }
+            batch.resolve();
+            if (outer == null) {
+                publish(pendingObjects.get(), objects);
+                if (writeCount.get() == writes) {
+                    publishFingerprints(pendingFingerprints.get());
+                }
+            }
+            return objects;
+        } finally {
+            if (outer == null) {
+                referenceBatch.remove();
+                pendingObjects.get().clear();
+                pendingFingerprints.get().clear();
+            } else {
+                referenceBatch.set(outer);
+            }
         }
+    }
 
-        JsonNode jsonNode = serializeObject(obj);
-        Map<String, Object> storage = file.exists()
-                ? mapper.readValue(file, Map.class)
-                : new HashMap<>();
-        storage.put(id.toString(), jsonNode);
+    private <T> T decodeRecord(Class<T> type, byte[] data) throws Exception {
+        StorageFormat format = StorageFormat.of(data);
+        PersistentCodec<T> codec = PersistentCodecs.find(type);
+        T obj;
+        if (codec == null) {
+            obj = deserializeObject(type, format.mapper().readTree(data));
+        } else {
+            try (JsonParser parser = format.factory().createParser(data)) {
+                parser.nextToken();
+                obj = codec.read(parser, codecContext);
+            }
+        }
+        if (obj != null) {
+            pendingFingerprints.get().put(obj, fingerprint(data));
+        }
+        return obj;
+    }
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            mapper.writerWithDefaultPrettyPrinter().writeValue(fos, storage);
+    // A fingerprint describes the stored record, so it is kept even when the cache holds another instance.
+    // A fingerprint set by a save is never replaced by one read before it.
+    private void publishFingerprints(Map<Object, Long> fingerprints) {
+        for (Map.Entry<Object, Long> entry : fingerprints.entrySet()) {
+            Object obj = entry.getKey();
+            Object id = ClassDescriptor.of(obj.getClass()).getId(obj);
+            if (id != null) {
+                objectCache.setFingerprint(obj.getClass(), id.toString(), entry.getValue(), true);
+            }
         }
     }
 
-    private Field findIdField(Class<?> type) {
-        for (Field field : type.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Id.class)) {
-                return field;
+    // Moves the now complete objects of this thread into the shared cache. If another thread published
+    // the same id first, its instance wins so every thread keeps seeing a single object per id.
+    private <T> void publish(Map<String, Object> pending, List<T> results) {
+        Map<Object, Object> replaced = new IdentityHashMap<>();
+        for (Object obj : pending.values()) {
+            Object id = ClassDescriptor.of(obj.getClass()).getId(obj);
+            Object cached = objectCache.intern(obj.getClass(), id.toString(), obj);
+            if (cached != obj) {
+                replaced.put(obj, cached);
+            }
+        }
+        if (!replaced.isEmpty()) {
+            results.replaceAll(result -> (T) replaced.getOrDefault(result, result));
+        }
+    }
+
+    // Reference ids met while decoding, grouped by target class, and the assignments waiting for them
+    private final class ReferenceBatch {
+        private Map<Class<?>, Set<String>> unresolved = new LinkedHashMap<>();
+        private final Set<String> requested = new HashSet<>();
+        // Records read by this batch, kept here as well since the cache may drop them before they are wired
+        private final Map<String, Object> resolved = new HashMap<>();
+        private final List<Runnable> assignments = new ArrayList<>();
+
+        // Calls the setter now if the target is known, otherwise once the batch has read it
+        <R> void defer(Class<R> type, Object id, Consumer<? super R> setter) {
+            R known = find(type, id);
+            if (known != null) {
+                setter.accept(known);
+                return;
+            }
+            request(type, id);
+            assignments.add(() -> setter.accept(find(type, id)));
+        }
+
+        // Fills the collection in id order once every element has been read
+        <E> void deferAll(Class<E> type, List<Object> ids, Collection<E> target) {
+            for (Object id : ids) {
+                if (id != null && find(type, id) == null) {
+                    request(type, id);
+                }
+            }
+            assignments.add(() -> {
+                for (Object id : ids) {
+                    target.add(id == null ? null : find(type, id));
+                }
+            });
+        }
+
+        private void request(Class<?> type, Object id) {
+            if (requested.add(pendingKey(type, id))) {
+                unresolved.computeIfAbsent(type, k -> new LinkedHashSet<>()).add(id.toString());
+            }
+        }
+
+        private <R> R find(Class<R> type, Object id) {
+            Object obj = resolved.get(pendingKey(type, id));
+            return obj != null ? type.cast(obj) : getFromCache(type, id);
+        }
+
+        // Missing records leave their references null, like a reference to a deleted object
+        void resolve() throws Exception {
+            while (!unresolved.isEmpty()) {
+                Map<Class<?>, Set<String>> round = unresolved;
+                unresolved = new LinkedHashMap<>();
+                for (Map.Entry<Class<?>, Set<String>> entry : round.entrySet()) {
+                    Class<?> type = entry.getKey();
+                    try (RecordCursor cursor = getStorage(type).lookup(entry.getValue())) {
+                        while (cursor.next()) {
+                            resolved.put(pendingKey(type, cursor.id()), decodeRecord(type, cursor.data()));
+                        }
+                    }
+                }
+            }
+            for (Runnable assignment : assignments) {
+                assignment.run();
             }
         }
-        throw new IllegalArgumentException("No @Id field found in class " + type.getName());
     }
 
     public <T> List<T> loadById(Class<T> type, Object id) throws Exception {
-        if (!type.isAnnotationPresent(Persistent.class)) {
+        if (!ClassDescriptor.isPersistent(type)) {
             throw new IllegalArgumentException("Not a @Persistent class");
         }
 
@@ -156,63 +847,48 @@ public class JsonStore {
             return Collections.singletonList((T) cachedObject);
         }
 
-        if (loadingObjects.get().contains(id)) {
-            return Collections.emptyList();
-        }
-
-        loadingObjects.get().add(id);
+        byte[] data = getStorage(type).get(id.toString());
+        if (data == null) return Collections.emptyList();
 
-        try {
-            String fileName = getFileName(type);
-            File file = new File(fileName);
-            if (!file.exists()) return Collections.emptyList();
-
-            Map<String, Object> storage = mapper.readValue(file, Map.class);
-            JsonNode jsonNode = mapper.valueToTree(storage.get(id.toString()));
-            if (jsonNode == null) return Collections.emptyList();
+        T object = decode(type, data);
+        return Collections.singletonList(object);
+    }
 
-            T object = deserializeObject(type, jsonNode);
-            return Collections.singletonList(object);
-        } finally {
-            loadingObjects.get().remove(id);
-        }
+    public <T> CompletableFuture<List<T>> loadByIdAsync(Class<T> type, Object id) {
+        return async(() -> loadById(type, id));
     }
 
     private JsonNode serializeObject(Object obj) throws Exception {
-        Class<?> type = obj.getClass();
         ObjectNode node = mapper.createObjectNode();
 
-        for (Field field : type.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Transient.class)) continue;
-            field.setAccessible(true);
-
-            String fieldName = field.getAnnotation(FieldAlias.class) != null
-                    ? field.getAnnotation(FieldAlias.class).value()
-                    : field.getName();
-
+        for (FieldDescriptor field : ClassDescriptor.of(obj.getClass()).getFields()) {
             Object value = field.get(obj);
 
             if (value instanceof Collection<?> collection) {
-                node.set(fieldName, serializeCollection(collection));
+                node.set(field.getJsonName(), serializeCollection(collection));
             } else {
-                node.set(fieldName, serializeValue(value));
+                node.set(field.getJsonName(), serializeValue(value));
             }
         }
         return node;
     }
 
     private JsonNode serializeCollection(Collection<?> collection) throws Exception {
+        if (collection instanceof LazyCollection lazy && !lazy.isLoaded()) {
+            return mapper.valueToTree(lazy.ids());
+        }
         return mapper.valueToTree(collection.stream()
                 .map(this::serializeValue)
                 .toList());
     }
 
     private JsonNode serializeValue(Object value) {
-        if (value != null && value.getClass().isAnnotationPresent(Persistent.class)) {
+        if (value instanceof Ref<?> ref) {
+            return mapper.valueToTree(ref.getId());
+        }
+        if (value != null && ClassDescriptor.isPersistent(value.getClass())) {
             try {
-                Field idField = findIdField(value.getClass());
-                idField.setAccessible(true);
-                Object id = idField.get(value);
+                Object id = ClassDescriptor.of(value.getClass()).getId(value);
                 return mapper.valueToTree(id);
             } catch (Exception e) {
                 throw new RuntimeException("Error serializing object reference", e);
@@ -222,12 +898,12 @@ public class JsonStore {
     }
 
     private <T> T deserializeObject(Class<T> type, JsonNode jsonNode) throws Exception {
-        T instance = type.getDeclaredConstructor().newInstance();
+        ClassDescriptor descriptor = ClassDescriptor.of(type);
+        T instance = type.cast(descriptor.newInstance());
 
         // Сначала установим ID, чтобы можно было добавить объект в кеш
-        Field idField = findIdField(type);
-        idField.setAccessible(true);
-        JsonNode idNode = jsonNode.get(idField.getName());
+        FieldDescriptor idField = descriptor.getIdField();
+        JsonNode idNode = jsonNode.get(idField.getJsonName());
         if (idNode != null) {
             Object idValue = mapper.treeToValue(idNode, idField.getType());
             idField.set(instance, idValue);
@@ -239,74 +915,682 @@ public class JsonStore {
             }
         }
 
-        // Добавляем в кеш до заполнения полей
-        addToCache(instance);
-
-        for (Field field : type.getDeclaredFields()) {
-            if (field.isAnnotationPresent(Transient.class) || field.isAnnotationPresent(Id.class)) continue;
-            field.setAccessible(true);
+        // Регистрируем до заполнения полей, чтобы циклические ссылки нашли этот объект
+        addToPending(instance);
 
-            String fieldName = field.getAnnotation(FieldAlias.class) != null
-                    ? field.getAnnotation(FieldAlias.class).value()
-                    : field.getName();
+        for (FieldDescriptor field : descriptor.getFields()) {
+            if (field.isId()) continue;
 
-            JsonNode valueNode = jsonNode.get(fieldName);
+            JsonNode valueNode = jsonNode.get(field.getJsonName());
             if (valueNode == null) continue;
 
-            if (Collection.class.isAssignableFrom(field.getType())) {
+            if (field.isLazy()) {
+                field.set(instance, valueNode.isNull() ? null : createLazyCollection(field, mapper.treeToValue(valueNode, List.class)));
+            } else if (field.isRef()) {
+                field.set(instance, valueNode.isNull() ? null : new Ref<>(this, field.getElementType(), mapper.treeToValue(valueNode, Object.class)));
+            } else if (field.isCollection()) {
                 Collection<Object> collection = createCollection(field.getType());
-                for (JsonNode elementNode : valueNode) {
-                    Object element = parseElement(field, elementNode);
-                    collection.add(element);
+                Class<Object> elementType = (Class<Object>) field.getElementType();
+                if (ClassDescriptor.isPersistent(elementType)) {
+                    List<Object> ids = new ArrayList<>();
+                    for (JsonNode elementNode : valueNode) {
+                        ids.add(elementNode.isNull() ? null : elementNode.asText());
+                    }
+                    referenceBatch.get().deferAll(elementType, ids, collection);
+                } else {
+                    for (JsonNode elementNode : valueNode) {
+                        collection.add(mapper.treeToValue(elementNode, elementType));
+                    }
                 }
                 field.set(instance, collection);
+            } else if (ClassDescriptor.isPersistent(field.getType()) && !valueNode.isNull()) {
+                referenceBatch.get().defer(field.getType(), valueNode.asText(), value -> field.set(instance, value));
             } else {
-                field.set(instance, parseValue(field.getType(), valueNode));
+                field.set(instance, mapper.treeToValue(valueNode, field.getType()));
             }
         }
         return instance;
     }
 
-    private Object parseElement(Field field, JsonNode elementNode) throws Exception {
-        Class<?> elementType = resolveCollectionElementType(field);
-        return parseValue(elementType, elementNode);
-    }
+    // Loads the targets of a lazy value with a single lookup, a null id or a missing record gives null
+    // like an eager reference
+    <T> List<T> resolveReferences(Class<T> type, List<Object> ids) {
+        try {
+            Map<String, T> loaded = new HashMap<>();
+            Set<String> missing = new LinkedHashSet<>();
+            for (Object id : ids) {
+                if (id == null) continue;
+                T cached = getFromCache(type, id);
+                if (cached != null) {
+                    loaded.put(id.toString(), cached);
+                } else {
+                    missing.add(id.toString());
+                }
+            }
+            if (!missing.isEmpty()) {
+                List<String> keys = new ArrayList<>();
+                List<byte[]> records = new ArrayList<>();
+                try (RecordCursor cursor = getStorage(type).lookup(missing)) {
+                    while (cursor.next()) {
+                        keys.add(cursor.id());
+                        records.add(cursor.data());
+                    }
+                }
+                List<T> objects = decodeAll(type, records);
+                for (int i = 0; i < keys.size(); i++) {
+                    loaded.put(keys.get(i), objects.get(i));
+                }
+            }
 
-    private Object parseValue(Class<?> targetType, JsonNode node) throws Exception {
-        if (targetType.isAnnotationPresent(Persistent.class)) {
-            UUID refId = UUID.fromString(node.asText());
-            Object cachedObject = getFromCache(targetType, refId);
-            if (cachedObject != null) {
-                return cachedObject;
+            List<T> resolved = new ArrayList<>(ids.size());
+            for (Object id : ids) {
+                resolved.add(id == null ? null : loaded.get(id.toString()));
             }
-            List<?> refs = loadById(targetType, refId);
-            return refs.isEmpty() ? null : refs.getFirst();
+            return resolved;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("Error loading " + type.getSimpleName() + " references", e);
         }
-        return mapper.treeToValue(node, targetType);
     }
 
+    // All matching records are decoded as one batch, so each referenced class is read once.
+    // A full scan reads the partitions of the storage in parallel, see scanStream().
     public <T> List<T> loadStream(Class<T> type, Query query) throws Exception {
-        if (!type.isAnnotationPresent(Persistent.class)) {
+        try (Stream<T> stream = stream(type, query, records -> decodeAll(type, records), Integer.MAX_VALUE, true)) {
+            return stream.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    public <T> CompletableFuture<List<T>> loadStreamAsync(Class<T> type, Query query) {
+        return async(() -> loadStream(type, query));
+    }
+
+    // Only the given stored fields of the matching records, as maps in the requested order. No object is
+    // created and references are not loaded, a reference field gives the stored id.
+    public List<Map<String, Object>> loadStream(Class<?> type, Query query, String... fields) throws Exception {
+        try (Stream<Map<String, Object>> stream = stream(type, query, fields)) {
+            return stream.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    // Matching records read into a record or plain class whose fields name stored fields of the type
+    public <P> List<P> loadStream(Class<?> type, Query query, Class<P> projection) throws Exception {
+        try (Stream<P> stream = stream(type, query, projection)) {
+            return stream.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    // Lazily evaluated variant of loadStream: records are read and deserialized in batches
+    // as the stream is consumed. The stream is sequential and in storage order, call parallel() on it to spread
+    // the work over threads. Close the stream if it is not consumed to the end.
+    public <T> Stream<T> stream(Class<T> type, Query query) throws Exception {
+        return stream(type, query, records -> decodeAll(type, records), DECODE_BATCH_SIZE);
+    }
+
+    public Stream<Map<String, Object>> stream(Class<?> type, Query query, String... fields) throws Exception {
+        return project(type, query, Projection.ofFields(mapper, type, fields));
+    }
+
+    public <P> Stream<P> stream(Class<?> type, Query query, Class<P> projection) throws Exception {
+        return project(type, query, Projection.of(mapper, type, projection));
+    }
+
+    private <P> Stream<P> project(Class<?> type, Query query, Projection<P> projection) throws Exception {
+        return stream(type, query, records -> {
+            List<P> projected = new ArrayList<>(records.size());
+            for (byte[] data : records) {
+                projected.add(projection.read(data));
+            }
+            return projected;
+        }, DECODE_BATCH_SIZE);
+    }
+
+    // Turns a batch of matching records into results
+    private interface BatchDecoder<T> {
+        List<T> decode(List<byte[]> records) throws Exception;
+    }
+
+    private <T> Stream<T> stream(Class<?> type, Query query, BatchDecoder<T> decoder, int batchSize) throws Exception {
+        return stream(type, query, decoder, batchSize, false);
+    }
+
+    // With parallel a full scan is read by partition on several threads, only for callers that collect everything
+    private <T> Stream<T> stream(Class<?> type, Query query, BatchDecoder<T> decoder, int batchSize,
+                                 boolean parallel) throws Exception {
+        if (!ClassDescriptor.isPersistent(type)) {
+            throw new IllegalArgumentException("Not a @Persistent class");
+        }
+
+        flushClass(type);
+        CompiledQuery compiledQuery = query.compile();
+        StorageEngine storage = getStorage(type);
+        if (!query.getOrderBy().isEmpty()) {
+            return stream(type, null, orderedRecords(type, query, compiledQuery, storage), decoder, batchSize);
+        }
+
+        // Without an order the page is the first matching records in storage order, so only those are decoded
+        int limit = query.getLimit();
+        int offset = query.getOffset();
+        if (limit >= 0) {
+            batchSize = (int) Math.max(1, Math.min(batchSize, (long) offset + limit));
+        }
+
+        // Answer the query from @Indexed fields when it can be, candidates are still checked against the query
+        Stream<T> results;
+        SecondaryIndexes typeIndexes = indexes.get(type);
+        // A page needs only the first records, reading every partition for it would be wasted
+        parallel &= limit < 0;
+        if (typeIndexes == null) {
+            results = scanStream(type, compiledQuery, storage, decoder, batchSize, parallel);
+        } else {
+            ReentrantReadWriteLock.ReadLock lock = lockFor(type).readLock();
+            lock.lock();
+            try {
+                Set<String> candidates = query.candidates(typeIndexes);
+                results = candidates != null
+                        ? stream(type, compiledQuery, storage.lookup(candidates), decoder, batchSize)
+                        : scanStream(type, compiledQuery, storage, decoder, batchSize, parallel);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (offset > 0) {
+            results = results.skip(offset);
+        }
+        return limit >= 0 ? results.limit(limit) : results;
+    }
+
+    // A matching record with the values of its sort fields
+    private record SortedRecord(Object[] values, String id, byte[] data) {}
+
+    // The requested page of matching records in query order. An order on a single @Indexed field with a limit
+    // walks that index and stops once the page is filled; otherwise every partition keeps only its best
+    // offset + limit records in a bounded heap during the scan, and the heaps are merged.
+    private RecordCursor orderedRecords(Class<?> type, Query query, CompiledQuery compiledQuery,
+                                        StorageEngine storage) throws IOException {
+        Ordering ordering = new Ordering(query.getOrderBy());
+        int offset = query.getOffset();
+        int limit = query.getLimit();
+        int wanted = limit < 0 ? Integer.MAX_VALUE : (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+
+        List<SortedRecord> records = null;
+        List<RecordCursor> partitions = null;
+        SecondaryIndexes typeIndexes = indexes.get(type);
+        if (typeIndexes != null) {
+            ReentrantReadWriteLock.ReadLock lock = lockFor(type).readLock();
+            lock.lock();
+            try {
+                Set<String> candidates = query.candidates(typeIndexes);
+                SecondaryIndex index = typeIndexes.get(ordering.keys().getFirst().field());
+                // A few candidates are cheaper to sort than to find in the index
+                if (limit >= 0 && ordering.keys().size() == 1 && index != null
+                        && (candidates == null || candidates.size() > wanted)) {
+                    records = indexedRecords(index, ordering.keys().getFirst(), compiledQuery, storage, candidates,
+                            wanted);
+                }
+                if (records == null && candidates != null) {
+                    partitions = List.of(storage.lookup(candidates));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (records == null) {
+            records = topRecords(ordering, compiledQuery, partitions != null ? partitions : storage.scanPartitions(),
+                    wanted);
+        }
+
+        Iterator<SortedRecord> page = offset < records.size()
+                ? records.subList(offset, Math.min(records.size(), wanted)).iterator()
+                : Collections.emptyIterator();
+        return new RecordCursor() {
+            private SortedRecord current;
+
+            @Override
+            public boolean next() {
+                current = page.hasNext() ? page.next() : null;
+                return current != null;
+            }
+
+            @Override
+            public String id() {
+                return current.id();
+            }
+
+            @Override
+            public byte[] data() {
+                return current.data();
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // The first wanted matching records in index order, read a chunk of index keys at a time. Records without
+    // an indexed value sort last but are not in the index, so if the index runs out while some of them exist
+    // null is returned and the caller scans instead.
+    private List<SortedRecord> indexedRecords(SecondaryIndex index, SortKey key, CompiledQuery compiledQuery,
+                                              StorageEngine storage, Set<String> candidates,
+                                              int wanted) throws IOException {
+        List<SortedRecord> records = new ArrayList<>();
+        Object lastKey = null;
+        int chunk = Math.max(wanted, 16);
+        while (records.size() < wanted) {
+            List<String> ids = new ArrayList<>();
+            lastKey = index.collectOrdered(key.descending(), lastKey, chunk, ids);
+            if (candidates != null) {
+                ids.removeIf(id -> !candidates.contains(id));
+            }
+            Map<String, byte[]> chunkRecords = new HashMap<>();
+            try (RecordCursor cursor = storage.lookup(ids)) {
+                while (cursor.next()) {
+                    chunkRecords.put(cursor.id(), cursor.data());
+                }
+            }
+            for (String id : ids) {
+                byte[] data = chunkRecords.get(id);
+                if (data != null && matches(compiledQuery, data)) {
+                    records.add(new SortedRecord(null, id, data));
+                    if (records.size() == wanted) return records;
+                }
+            }
+            if (lastKey == null) {
+                return index.size() == storage.size() ? records : null;
+            }
+            // A selective query rejects most of the index, read more of it each round
+            chunk = (int) Math.min(Integer.MAX_VALUE, chunk * 2L);
+        }
+        return records;
+    }
+
+    // The first wanted matching records of the partitions in query order. Each partition keeps its best records
+    // in a heap with the worst one on top, so a page of a large table holds only the page per partition.
+    private List<SortedRecord> topRecords(Ordering ordering, CompiledQuery compiledQuery,
+                                          List<RecordCursor> partitions, int wanted) throws IOException {
+        Comparator<SortedRecord> order = (left, right) ->
+                ordering.compare(left.values(), left.id(), right.values(), right.id());
+        try {
+            return partitions.parallelStream()
+                    .flatMap(cursor -> {
+                        PriorityQueue<SortedRecord> top = new PriorityQueue<>(order.reversed());
+                        try {
+                            while (wanted > 0 && cursor.next()) {
+                                byte[] data = cursor.data();
+                                if (!matches(compiledQuery, data)) continue;
+                                Object[] values;
+                                try (JsonParser parser = StorageFormat.of(data).factory().createParser(data)) {
+                                    parser.nextToken();
+                                    values = ordering.read(parser);
+                                }
+                                SortedRecord record = new SortedRecord(values, cursor.id(), data);
+                                if (top.size() < wanted) {
+                                    top.add(record);
+                                } else if (order.compare(record, top.peek()) < 0) {
+                                    top.poll();
+                                    top.add(record);
+                                }
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return top.stream();
+                    })
+                    .sorted(order)
+                    .limit(wanted)
+                    .collect(Collectors.toCollection(ArrayList::new));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (RecordCursor cursor : partitions) {
+                cursor.close();
+            }
+        }
+    }
+
+    // A full scan reads the partitions one after another, so stream() stays sequential and lazy. With parallel
+    // the partitions (shards, runs of log segments) are read on the common ForkJoinPool instead: each one is
+    // decoded by its own decoder call, with its own ReferenceBatch, and the lists are joined in partition order.
+    private <T> Stream<T> scanStream(Class<?> type, CompiledQuery compiledQuery, StorageEngine storage,
+                                     BatchDecoder<T> decoder, int batchSize, boolean parallel) throws IOException {
+        if (!parallel) {
+            return stream(type, compiledQuery, storage.scan(), decoder, batchSize);
+        }
+        List<RecordCursor> partitions = storage.scanPartitions();
+        try {
+            List<List<T>> results = partitions.parallelStream()
+                    .map(cursor -> {
+                        try (Stream<T> partition = stream(type, compiledQuery, cursor, decoder, batchSize)) {
+                            return partition.collect(Collectors.toCollection(ArrayList::new));
+                        }
+                    })
+                    .collect(Collectors.toList());
+            return results.stream().flatMap(List::stream);
+        } finally {
+            for (RecordCursor cursor : partitions) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Aggregates the matching records straight from their stored form: no object is created and the identity
+    // cache is not touched. Partitions of the storage are aggregated in parallel and merged. A null query
+    // aggregates every record; the order, limit and offset of the query are ignored.
+    public <R> R aggregate(Class<?> type, Query query, Aggregate<R> aggregate) throws Exception {
+        if (!ClassDescriptor.isPersistent(type)) {
+            throw new IllegalArgumentException("Not a @Persistent class");
+        }
+
+        flushClass(type);
+        List<RecordCursor> partitions = queryPartitions(type, query, getStorage(type));
+        try {
+            return partitions.parallelStream()
+                    .map(cursor -> {
+                        Aggregate.Accumulator<R> accumulator = aggregate.accumulator(query);
+                        try {
+                            while (cursor.next()) {
+                                byte[] data = cursor.data();
+                                try (JsonParser parser = StorageFormat.of(data).factory().createParser(data)) {
+                                    parser.nextToken();
+                                    accumulator.accept(parser);
+                                }
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return accumulator;
+                    })
+                    .reduce((left, right) -> {
+                        left.combine(right);
+                        return left;
+                    })
+                    .orElseGet(() -> aggregate.accumulator(query))
+                    .result();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (RecordCursor cursor : partitions) {
+                cursor.close();
+            }
+        }
+    }
+
+    // Cursors over the records a query may match: the index candidates when the indexes can answer the query,
+    // the partitions of the storage otherwise. A null query needs every record.
+    private List<RecordCursor> queryPartitions(Class<?> type, Query query, StorageEngine storage) throws IOException {
+        SecondaryIndexes typeIndexes = indexes.get(type);
+        if (query != null && typeIndexes != null) {
+            ReentrantReadWriteLock.ReadLock lock = lockFor(type).readLock();
+            lock.lock();
+            try {
+                Set<String> candidates = query.candidates(typeIndexes);
+                if (candidates != null) {
+                    return List.of(storage.lookup(candidates));
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return storage.scanPartitions();
+    }
+
+    public boolean update(Class<?> type, Object id, String field, Object value) throws IOException {
+        Map<String, Object> patch = new HashMap<>();
+        patch.put(field, value);
+        return update(type, id, patch);
+    }
+
+    // Changes some fields of a stored record without loading it: the stored form is patched and appended,
+    // the indexes are updated and a cached object of the record gets the new values too. Reference fields
+    // cannot be patched. Returns false if there is no record with this id.
+    public boolean update(Class<?> type, Object id, Map<String, ?> patch) throws IOException {
+        if (!ClassDescriptor.isPersistent(type)) {
+            throw new IllegalArgumentException("Not a @Persistent class");
+        }
+        return patchRecords(type, new RecordPatch(mapper, type, patch), List.of(id.toString()), null) == 1;
+    }
+
+    // Patches every record matching the query, see update(), and returns their number
+    public int updateWhere(Class<?> type, Query query, Map<String, ?> patch) throws IOException {
+        if (!ClassDescriptor.isPersistent(type)) {
+            throw new IllegalArgumentException("Not a @Persistent class");
+        }
+        RecordPatch recordPatch = new RecordPatch(mapper, type, patch);
+        CompiledQuery compiledQuery = query.compile();
+        return patchRecords(type, recordPatch, matchingIds(type, query, compiledQuery), compiledQuery);
+    }
+
+    // Ids of the stored records matching the query, after the buffered objects of the class are written
+    private List<String> matchingIds(Class<?> type, Query query, CompiledQuery compiledQuery) throws IOException {
+        flushClass(type);
+        List<String> ids = new ArrayList<>();
+        List<RecordCursor> partitions = queryPartitions(type, query, getStorage(type));
+        try {
+            for (RecordCursor cursor : partitions) {
+                while (cursor.next()) {
+                    if (matches(compiledQuery, cursor.data())) {
+                        ids.add(cursor.id());
+                    }
+                }
+            }
+        } finally {
+            for (RecordCursor cursor : partitions) {
+                cursor.close();
+            }
+        }
+        return ids;
+    }
+
+    // Patches the records a batch at a time, each batch is read and written under the write lock of the class
+    // so no concurrent save is lost. With a query, records that no longer match are left alone.
+    private int patchRecords(Class<?> type, RecordPatch patch, List<String> ids,
+                             CompiledQuery query) throws IOException {
+        flushClass(type);
+        StorageEngine storage = getStorage(type);
+        ReentrantReadWriteLock.WriteLock lock = lockFor(type).writeLock();
+        int patched = 0;
+        for (int from = 0; from < ids.size(); from += PATCH_BATCH_SIZE) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + PATCH_BATCH_SIZE));
+            lock.lock();
+            try {
+                Map<String, byte[]> records = new LinkedHashMap<>();
+                try (RecordCursor cursor = storage.lookup(batch)) {
+                    while (cursor.next()) {
+                        byte[] data = cursor.data();
+                        if (query == null || matches(query, data)) {
+                            records.put(cursor.id(), patch.apply(data));
+                        }
+                    }
+                }
+                if (records.isEmpty()) continue;
+
+                // The stored records change, so the fingerprints known for them no longer hold
+                for (String id : records.keySet()) {
+                    objectCache.setFingerprint(type, id, null, false);
+                }
+                writeCount.incrementAndGet();
+                storage.putAll(records);
+                SecondaryIndexes typeIndexes = indexes.get(type);
+                for (Map.Entry<String, byte[]> record : records.entrySet()) {
+                    if (typeIndexes != null) {
+                        typeIndexes.update(record.getKey(), record.getValue());
+                    }
+                    Object cached = objectCache.get(type, record.getKey());
+                    if (cached != null) {
+                        patch.applyTo(cached);
+                    }
+                }
+                patched += records.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return patched;
+    }
+
+    // Removes the object with this id: the storage appends a tombstone instead of rewriting anything and
+    // reclaims the space later during compaction. The object leaves the cache and the indexes, references
+    // to it load as null and a generated numeric id is not handed out again. Returns false if there was none.
+    public boolean delete(Class<?> type, Object id) throws IOException {
+        if (!ClassDescriptor.isPersistent(type)) {
             throw new IllegalArgumentException("Not a @Persistent class");
         }
+        String key = id.toString();
+        boolean buffered = false;
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            // A flush that already took the object finishes first, so the tombstone comes after its record
+            synchronized (flushLock) {
+                buffered = buffer.remove(type, key);
+            }
+        }
+        return deleteRecords(type, List.of(key), null) == 1 || buffered;
+    }
 
-        String fileName = getFileName(type);
-        File file = new File(fileName);
-        if (!file.exists()) return Collections.emptyList();
+    // Removes every object matching the query, see delete(), and returns their number
+    public int deleteWhere(Class<?> type, Query query) throws IOException {
+        if (!ClassDescriptor.isPersistent(type)) {
+            throw new IllegalArgumentException("Not a @Persistent class");
+        }
+        CompiledQuery compiledQuery = query.compile();
+        return deleteRecords(type, matchingIds(type, query, compiledQuery), compiledQuery);
+    }
 
-        Map<String, Object> storage = mapper.readValue(file, Map.class);
-        List<T> result = new ArrayList<>();
+    // Deletes the records a batch at a time under the write lock of the class, like patchRecords().
+    // With a query, records that no longer match are left alone.
+    private int deleteRecords(Class<?> type, List<String> ids, CompiledQuery query) throws IOException {
+        StorageEngine storage = getStorage(type);
+        ReentrantReadWriteLock.WriteLock lock = lockFor(type).writeLock();
+        int deleted = 0;
+        long maxNumericId = 0;
+        // Opened before the records go, a sequence without a mark would start after the largest id left
+        IdSequence sequence = ids.stream().anyMatch(JsonStore::isNumeric) ? getSequence(type) : null;
+        for (int from = 0; from < ids.size(); from += PATCH_BATCH_SIZE) {
+            List<String> batch = ids.subList(from, Math.min(ids.size(), from + PATCH_BATCH_SIZE));
+            lock.lock();
+            try {
+                List<String> matching = batch;
+                if (query != null) {
+                    matching = new ArrayList<>();
+                    try (RecordCursor cursor = storage.lookup(batch)) {
+                        while (cursor.next()) {
+                            if (matches(query, cursor.data())) {
+                                matching.add(cursor.id());
+                            }
+                        }
+                    }
+                }
+                if (matching.isEmpty()) continue;
 
-        for (Map.Entry<String, Object> entry : storage.entrySet()) {
-            JsonNode jsonNode = mapper.valueToTree(entry.getValue());
+                writeCount.incrementAndGet();
+                deleted += storage.deleteAll(matching);
+                SecondaryIndexes typeIndexes = indexes.get(type);
+                for (String id : matching) {
+                    if (typeIndexes != null) {
+                        typeIndexes.remove(id);
+                    }
+                    objectCache.remove(type, id);
+                    if (isNumeric(id)) {
+                        maxNumericId = Math.max(maxNumericId, Long.parseLong(id));
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (sequence != null && maxNumericId > 0) {
+            sequence.skipPast(maxNumericId);
+        }
+        return deleted;
+    }
+
+    private static boolean isNumeric(String id) {
+        if (id.isEmpty() || id.length() > 18) return false;
+        for (int i = 0; i < id.length(); i++) {
+            if (!Character.isDigit(id.charAt(i))) return false;
+        }
+        return true;
+    }
 
-            if (query.matches(jsonNode)) {
-                T object = deserializeObject(type, jsonNode);
-                result.add(object);
+    // Records whose ids sort in [fromId, toId) and match the query, a null bound is open and a null query
+    // matches everything. Only the ids in the range are read from the storage.
+    public <T> Stream<T> streamRange(Class<T> type, String fromId, String toId, Query query) throws Exception {
+        if (!ClassDescriptor.isPersistent(type)) {
+            throw new IllegalArgumentException("Not a @Persistent class");
+        }
+
+        flushClass(type);
+        CompiledQuery compiledQuery = query != null ? query.compile() : null;
+        return stream(type, compiledQuery, getStorage(type).range(fromId, toId), records -> decodeAll(type, records),
+                DECODE_BATCH_SIZE);
+    }
+
+    // Records created in [from, to) of a class whose ids come from IdGenType.UUID_V7, a null bound is open
+    public <T> List<T> loadCreatedBetween(Class<T> type, Instant from, Instant to) throws Exception {
+        String fromId = from != null ? TimeOrderedUUIDGenerator.lowerBound(from).toString() : null;
+        String toId = to != null ? TimeOrderedUUIDGenerator.lowerBound(to).toString() : null;
+        try (Stream<T> stream = streamRange(type, fromId, toId, null)) {
+            return stream.collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    // Matching records are decoded batchSize at a time
+    private <T> Stream<T> stream(Class<?> type, CompiledQuery compiledQuery, RecordCursor cursor,
+                                 BatchDecoder<T> decoder, int batchSize) {
+        Spliterator<T> records = new Spliterators.AbstractSpliterator<>(Long.MAX_VALUE,
+                Spliterator.ORDERED | Spliterator.NONNULL) {
+            private final Deque<T> decoded = new ArrayDeque<>();
+
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                try {
+                    if (decoded.isEmpty()) {
+                        List<byte[]> batch = new ArrayList<>();
+                        while (batch.size() < batchSize && cursor.next()) {
+                            // Rejected records are never turned into a tree or an object
+                            if (compiledQuery == null || matches(compiledQuery, cursor.data())) {
+                                batch.add(cursor.data());
+                            }
+                        }
+                        if (batch.isEmpty()) {
+                            cursor.close();
+                            return false;
+                        }
+                        decoded.addAll(decoder.decode(batch));
+                    }
+                    action.accept(decoded.poll());
+                    return true;
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new RuntimeException("Error reading " + type.getSimpleName() + " records", e);
+                }
             }
+        };
+
+        return StreamSupport.stream(records, false).onClose(() -> {
+            try {
+                cursor.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    private boolean matches(CompiledQuery query, byte[] data) throws IOException {
+        try (JsonParser parser = StorageFormat.of(data).factory().createParser(data)) {
+            parser.nextToken();
+            return query.matches(parser);
         }
+    }
 
-        return result;
+    private Collection<Object> createLazyCollection(FieldDescriptor field, List<Object> ids) {
+        Class<Object> elementType = (Class<Object>) field.getElementType();
+        return field.getType().isAssignableFrom(LazyList.class)
+                ? new LazyList<>(this, elementType, ids)
+                : new LazySet<>(this, elementType, ids);
     }
 
     private Collection<Object> createCollection(Class<?> collectionType) {
@@ -318,25 +1602,33 @@ public class JsonStore {
         throw new IllegalArgumentException("Unsupported collection type: " + collectionType);
     }
 
-    private Class<?> resolveCollectionElementType(Field field) {
-        Type genericType = field.getGenericType();
-        if (genericType instanceof ParameterizedType pt) {
-            Type[] typeArgs = pt.getActualTypeArguments();
-            if (typeArgs.length > 0 && typeArgs[0] instanceof Class<?> clazz) {
-                return clazz;
-            }
-        }
-        throw new IllegalArgumentException("Could not resolve element type for field: " + field.getName());
-    }
-
     public void clearStorage(Class<?> type) throws IOException {
-        String fileName = getFileName(type);
-        File file = new File(fileName);
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            buffer.remove(type);
+        }
+        boolean exists = storages.containsKey(type)
+                || new File(getStorageName(type)).exists()
+                || new File(getFileName(type)).exists();
 
-        if (file.exists()) {
-            Map<String, Object> emptyStorage = new HashMap<>();
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                mapper.writerWithDefaultPrettyPrinter().writeValue(fos, emptyStorage);
+        if (exists) {
+            StorageEngine storage = getStorage(type);
+            ReentrantReadWriteLock.WriteLock lock = lockFor(type).writeLock();
+            lock.lock();
+            try {
+                storage.clear();
+                SecondaryIndexes typeIndexes = indexes.get(type);
+                if (typeIndexes != null) {
+                    typeIndexes.clear();
+                }
+                IdSequence sequence = sequences.get(type);
+                if (sequence != null) {
+                    sequence.reset();
+                } else {
+                    Files.deleteIfExists(getSequenceFile(type));
+                }
+            } finally {
+                lock.unlock();
             }
             System.out.println("Storage cleared for " + type.getSimpleName());
         } else {
@@ -344,28 +1636,191 @@ public class JsonStore {
         }
 
         // Очищаем кеш для этого типа
-        objectCache.remove(type);
+        objectCache.removeAll(type);
+    }
+
+    private void addToCache(Object obj) {
+        Object id = ClassDescriptor.of(obj.getClass()).getId(obj);
+        if (id != null) {
+            objectCache.put(obj.getClass(), id.toString(), obj);
+        }
     }
 
-    private void addToCache(Object obj) throws Exception {
-        Field idField = findIdField(obj.getClass());
-        idField.setAccessible(true);
-        String id = idField.get(obj).toString();
+    private void addToPending(Object obj) {
+        Object id = ClassDescriptor.of(obj.getClass()).getId(obj);
         if (id != null) {
-            objectCache.computeIfAbsent(obj.getClass(), k -> new HashMap<>()).put(id, obj);
+            pendingObjects.get().put(pendingKey(obj.getClass(), id), obj);
         }
     }
 
+    private static String pendingKey(Class<?> type, Object id) {
+        return type.getName() + '#' + id;
+    }
+
     private <T> T getFromCache(Class<T> type, Object id) {
         if (id == null) return null;
-        Map<Object, Object> typeCache = objectCache.get(type);
-        if (typeCache != null) {
-            return (T) typeCache.get(id);
+        Object pending = pendingObjects.get().get(pendingKey(type, id));
+        if (pending != null) {
+            return (T) pending;
         }
-        return null;
+        // A buffered object is newer than its record and may have been evicted from the cache
+        WriteBuffer buffer = writeBuffer;
+        Object buffered = buffer != null ? buffer.get(type, id.toString()) : null;
+        if (buffered != null) {
+            return (T) buffered;
+        }
+        return (T) objectCache.get(type, id.toString());
     }
 
     public void clearCache() {
         objectCache.clear();
     }
+
+    // Hit, miss and eviction counters of the identity cache
+    public CacheStats getCacheStats() {
+        return objectCache.stats();
+    }
+
+    // Gives generated codecs access to references, the identity cache and the object mapper
+    private class StoreCodecContext implements CodecContext {
+        @Override
+        public void writeReference(JsonGenerator generator, Object value) throws IOException {
+            if (value == null) {
+                generator.writeNull();
+            } else if (value instanceof Ref<?> ref) {
+                mapper.writeValue(generator, ref.getId());
+            } else {
+                mapper.writeValue(generator, ClassDescriptor.of(value.getClass()).getId(value));
+            }
+        }
+
+        @Override
+        public void writeReferences(JsonGenerator generator, Collection<?> values) throws IOException {
+            if (values == null) {
+                generator.writeNull();
+            } else if (values instanceof LazyCollection lazy && !lazy.isLoaded()) {
+                mapper.writeValue(generator, lazy.ids());
+            } else {
+                generator.writeStartArray();
+                for (Object value : values) {
+                    writeReference(generator, value);
+                }
+                generator.writeEndArray();
+            }
+        }
+
+        @Override
+        public void writeValue(JsonGenerator generator, Object value) throws IOException {
+            if (value != null && ClassDescriptor.isPersistent(value.getClass())) {
+                writeReference(generator, value);
+            } else {
+                mapper.writeValue(generator, value);
+            }
+        }
+
+        @Override
+        public <R> void readReference(JsonParser parser, Class<R> type, Consumer<? super R> setter) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NULL) {
+                setter.accept(null);
+            } else {
+                referenceBatch.get().defer(type, parser.getText(), setter);
+            }
+        }
+
+        @Override
+        public <E> boolean readCollection(JsonParser parser, Class<E> elementType, Collection<E> target) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NULL) return false;
+            if (ClassDescriptor.isPersistent(elementType)) {
+                referenceBatch.get().deferAll(elementType, readIds(parser), target);
+                return true;
+            }
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                target.add(readValue(parser, elementType));
+            }
+            return true;
+        }
+
+        @Override
+        public <R> Ref<R> readRef(JsonParser parser, Class<R> type) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NULL) return null;
+            return new Ref<>(JsonStore.this, type, readId(parser));
+        }
+
+        @Override
+        public <E> List<E> readLazyList(JsonParser parser, Class<E> elementType) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NULL) return null;
+            return new LazyList<>(JsonStore.this, elementType, readIds(parser));
+        }
+
+        @Override
+        public <E> Set<E> readLazySet(JsonParser parser, Class<E> elementType) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NULL) return null;
+            return new LazySet<>(JsonStore.this, elementType, readIds(parser));
+        }
+
+        private List<Object> readIds(JsonParser parser) throws IOException {
+            List<Object> ids = new ArrayList<>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                ids.add(readId(parser));
+            }
+            return ids;
+        }
+
+        // Numeric ids stay numbers so the record is written back unchanged
+        private Object readId(JsonParser parser) throws IOException {
+            return switch (parser.currentToken()) {
+                case VALUE_NULL -> null;
+                case VALUE_NUMBER_INT -> parser.getNumberValue();
+                default -> parser.getText();
+            };
+        }
+
+        @Override
+        public <V> V readValue(JsonParser parser, Class<V> type) throws IOException {
+            if (parser.currentToken() == JsonToken.VALUE_NULL) return null;
+            return mapper.readValue(parser, type);
+        }
+
+        @Override
+        public <R> R cached(Class<R> type, Object id) {
+            return id == null ? null : getFromCache(type, id);
+        }
+
+        @Override
+        public void register(Object obj) {
+            addToPending(obj);
+        }
+
+        @Override
+        public void skipObject(JsonParser parser) throws IOException {
+            parser.skipChildren(); // the id value may itself be an object or array
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                parser.nextToken();
+                parser.skipChildren();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Saves still waiting for a group commit or in the write-behind buffer are written first
+        stopGroupCommitter();
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null) {
+            flush(buffer);
+            buffer.disarm();
+        }
+        for (Map.Entry<Class<?>, SecondaryIndexes> entry : indexes.entrySet()) {
+            entry.getValue().save(storages.get(entry.getKey()), mapper);
+        }
+        indexes.clear();
+        for (IdSequence sequence : sequences.values()) {
+            sequence.close();
+        }
+        sequences.clear();
+        for (StorageEngine storage : storages.values()) {
+            storage.close();
+        }
+        storages.clear();
+    }
 }
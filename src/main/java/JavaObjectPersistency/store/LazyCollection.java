@@ -0,0 +1,11 @@
+package JavaObjectPersistency.store;
+
+import java.util.List;
+
+// Collection of @Persistent objects read as ids, the objects are loaded on first access
+public interface LazyCollection {
+    boolean isLoaded();
+
+    // Ids of the elements as they were stored, null for a null element
+    List<Object> ids();
+}
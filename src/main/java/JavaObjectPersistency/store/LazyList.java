@@ -0,0 +1,73 @@
+package JavaObjectPersistency.store;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+// List value of a @Lazy field. size() and isEmpty() are answered from the ids, anything else loads every element.
+public final class LazyList<E> extends AbstractList<E> implements LazyCollection, RandomAccess {
+    private final JsonStore store;
+    private final Class<E> type;
+    private final List<Object> ids;
+    private volatile List<E> elements;
+
+    LazyList(JsonStore store, Class<E> type, List<Object> ids) {
+        this.store = store;
+        this.type = type;
+        this.ids = ids;
+    }
+
+    private List<E> elements() {
+        List<E> loaded = elements;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = elements;
+                if (loaded == null) {
+                    loaded = new ArrayList<>(store.resolveReferences(type, ids));
+                    elements = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return elements != null;
+    }
+
+    @Override
+    public List<Object> ids() {
+        return ids;
+    }
+
+    @Override
+    public E get(int index) {
+        return elements().get(index);
+    }
+
+    @Override
+    public int size() {
+        List<E> loaded = elements;
+        return loaded != null ? loaded.size() : ids.size();
+    }
+
+    @Override
+    public E set(int index, E element) {
+        return elements().set(index, element);
+    }
+
+    @Override
+    public void add(int index, E element) {
+        elements().add(index, element);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        E removed = elements().remove(index);
+        modCount++;
+        return removed;
+    }
+}
@@ -0,0 +1,72 @@
+package JavaObjectPersistency.store;
+
+import java.util.AbstractSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Set value of a @Lazy field. size() and isEmpty() are answered from the ids, anything else loads every element.
+// The stored ids are distinct, so the count only differs once loaded if referenced records were deleted.
+public final class LazySet<E> extends AbstractSet<E> implements LazyCollection {
+    private final JsonStore store;
+    private final Class<E> type;
+    private final List<Object> ids;
+    private volatile Set<E> elements;
+
+    LazySet(JsonStore store, Class<E> type, List<Object> ids) {
+        this.store = store;
+        this.type = type;
+        this.ids = ids;
+    }
+
+    private Set<E> elements() {
+        Set<E> loaded = elements;
+        if (loaded == null) {
+            synchronized (this) {
+                loaded = elements;
+                if (loaded == null) {
+                    loaded = new HashSet<>(store.resolveReferences(type, ids));
+                    elements = loaded;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    @Override
+    public boolean isLoaded() {
+        return elements != null;
+    }
+
+    @Override
+    public List<Object> ids() {
+        return ids;
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return elements().iterator();
+    }
+
+    @Override
+    public int size() {
+        Set<E> loaded = elements;
+        return loaded != null ? loaded.size() : ids.size();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return elements().contains(o);
+    }
+
+    @Override
+    public boolean add(E e) {
+        return elements().add(e);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        return elements().remove(o);
+    }
+}
@@ -0,0 +1,1263 @@
+package JavaObjectPersistency.store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Append-only storage engine. Every record version is appended to the active segment file,
+// an in-memory table maps each id to the position of its latest version, and sealed segments
+// are rewritten in the background once enough of their bytes belong to superseded versions.
+// A delete appends a tombstone that hides the older versions until compaction drops them all.
+// With compression on, sealed segments are also rewritten as independently deflated blocks.
+public class LogStorageEngine implements StorageEngine {
+    public static final long DEFAULT_SEGMENT_SIZE = 4L * 1024 * 1024;
+    public static final double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String COMPACT_SUFFIX = ".compact";
+    private static final String TMP_SUFFIX = ".tmp";
+    // Id table saved on close, so a clean restart does not read every segment
+    private static final String INDEX_SNAPSHOT = "index.snapshot";
+    private static final long SNAPSHOT_MAGIC = 0x4A4F5049445832L; // "JOPIDX2"
+
+    // Record layout: length(4) crc(4) | seq(8) op(1) keyLength(2) key data
+    // length and crc cover everything after the first 8 bytes
+    private static final int PREFIX_SIZE = 8;
+    private static final int HEADER_SIZE = PREFIX_SIZE + 8 + 1 + 2;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte[] NO_DATA = new byte[0];
+    // Upper bound of the buffer putAll assembles for a single write
+    private static final int MAX_BATCH_WRITE = 8 * 1024 * 1024;
+
+    // Compressed segment layout: magic(8) then blocks of compressedLength(4) rawLength(4) deflated records
+    private static final long COMPRESSED_MAGIC = 0x4A4F505A53454731L; // "JOPZSEG1"
+    private static final int MAGIC_SIZE = 8;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    // Blocks a scan inflates ahead of the record it returns, in parallel
+    private static final int READ_AHEAD = 4;
+    private static final int BLOCK_CACHE_SIZE = 256;
+
+    private static final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "log-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    // Sorted by id so time-ordered ids can be read by range
+    private final ConcurrentNavigableMap<String, RecordPointer> index = new ConcurrentSkipListMap<>();
+    // Sequence number of the latest tombstone of each deleted id that compaction has not dropped yet.
+    // A tombstone is garbage from the start, but it has to be kept while older segments may hold versions of its id.
+    private final Map<String, Long> tombstones = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Readers hold the read lock, compaction and clear() hold the write lock while they swap segments
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    // Bumped by clear() under appendLock and the write lock, so a compaction started before it drops its output
+    private long generation;
+    private final BlockCache blockCache = new BlockCache(BLOCK_CACHE_SIZE);
+    private volatile boolean compression;
+    private long sequence; // guarded by appendLock
+    private Segment active; // guarded by appendLock
+    private volatile boolean closed;
+
+    public LogStorageEngine(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    public LogStorageEngine(Path directory, long maxSegmentSize, double compactionThreshold) throws IOException {
+        this(directory, maxSegmentSize, compactionThreshold, false);
+    }
+
+    public LogStorageEngine(Path directory, long maxSegmentSize, double compactionThreshold,
+                            boolean compression) throws IOException {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.compression = compression;
+        Files.createDirectories(directory);
+        recover();
+    }
+
+    // Whether sealed segments are rewritten compressed. Segments of either kind stay readable.
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    @Override
+    public void put(String id, byte[] data) throws IOException {
+        synchronized (appendLock) {
+            ensureOpen();
+            if (active.size >= maxSegmentSize) {
+                roll();
+            }
+            long seq = sequence++;
+            ByteBuffer buffer = encode(seq, OP_PUT, id, data);
+            int length = buffer.remaining();
+            long offset = active.append(buffer);
+            appended(OP_PUT, id, new RecordPointer(active, offset, -1, length, seq));
+        }
+        maybeCompact();
+    }
+
+    // Points the id table at a record that was just appended; caller holds appendLock
+    private void appended(byte op, String id, RecordPointer pointer) {
+        RecordPointer previous = op == OP_PUT ? index.put(id, pointer) : index.remove(id);
+        if (previous != null) {
+            previous.segment().garbage.addAndGet(previous.length());
+        }
+        if (op == OP_PUT) {
+            tombstones.remove(id);
+        } else {
+            tombstones.put(id, pointer.seq());
+            pointer.segment().garbage.addAndGet(pointer.length());
+        }
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        return deleteAll(List.of(id)) == 1;
+    }
+
+    // Appends a tombstone per stored id, with one write per segment like putAll. Ids without a record are skipped.
+    @Override
+    public int deleteAll(Collection<String> ids) throws IOException {
+        int deleted;
+        synchronized (appendLock) {
+            ensureOpen();
+            Map<String, byte[]> tombstoned = new LinkedHashMap<>();
+            for (String id : ids) {
+                if (index.containsKey(id)) {
+                    tombstoned.put(id, NO_DATA);
+                }
+            }
+            appendAll(OP_DELETE, tombstoned);
+            deleted = tombstoned.size();
+        }
+        maybeCompact();
+        return deleted;
+    }
+
+    // Sealed segments were forced when they were rolled, so only the active one can hold unsynced records
+    @Override
+    public void sync() throws IOException {
+        synchronized (appendLock) {
+            ensureOpen();
+            active.channel.force(false);
+        }
+    }
+
+    // Encodes the records back to back and appends them with one write per segment they land in
+    @Override
+    public void putAll(Map<String, byte[]> records) throws IOException {
+        synchronized (appendLock) {
+            ensureOpen();
+            appendAll(OP_PUT, records);
+        }
+        maybeCompact();
+    }
+
+    // Caller holds appendLock
+    private void appendAll(byte op, Map<String, byte[]> records) throws IOException {
+        Iterator<Map.Entry<String, byte[]>> remaining = records.entrySet().iterator();
+        while (remaining.hasNext()) {
+            if (active.size >= maxSegmentSize) {
+                roll();
+            }
+            List<EncodedRecord> batch = new ArrayList<>();
+            long batchSize = 0;
+            while (remaining.hasNext() && active.size + batchSize < maxSegmentSize && batchSize < MAX_BATCH_WRITE) {
+                Map.Entry<String, byte[]> record = remaining.next();
+                long seq = sequence++;
+                ByteBuffer buffer = encode(seq, op, record.getKey(), record.getValue());
+                batch.add(new EncodedRecord(record.getKey(), seq, buffer));
+                batchSize += buffer.remaining();
+            }
+
+            ByteBuffer joined = ByteBuffer.allocate(Math.toIntExact(batchSize));
+            for (EncodedRecord record : batch) {
+                joined.put(record.buffer());
+            }
+            joined.flip();
+            long offset = active.append(joined);
+
+            for (EncodedRecord record : batch) {
+                int length = record.buffer().limit();
+                appended(op, record.key(), new RecordPointer(active, offset, -1, length, record.seq()));
+                offset += length;
+            }
+        }
+    }
+
+    @Override
+    public byte[] get(String id) throws IOException {
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            RecordPointer pointer = index.get(id);
+            if (pointer == null) return null;
+
+            return readRecord(pointer).data();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return index.containsKey(id);
+    }
+
+    @Override
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public RecordCursor scan() throws IOException {
+        return new LogCursor(retainSegments());
+    }
+
+    // Contiguous runs of segments, at most one per processor. Whether a record is the latest version
+    // only depends on the index, so the runs can be read independently.
+    @Override
+    public List<RecordCursor> scanPartitions() throws IOException {
+        List<Segment> snapshot = retainSegments();
+        int count = Math.min(snapshot.size(), Runtime.getRuntime().availableProcessors());
+        if (count <= 1) {
+            return List.of(new LogCursor(snapshot));
+        }
+        List<RecordCursor> cursors = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            cursors.add(new LogCursor(snapshot.subList(i * snapshot.size() / count, (i + 1) * snapshot.size() / count)));
+        }
+        return cursors;
+    }
+
+    private List<Segment> retainSegments() throws IOException {
+        List<Segment> snapshot = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            ensureOpen();
+            for (Segment segment : segments.values()) {
+                if (segment.retain()) {
+                    snapshot.add(segment);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return snapshot;
+    }
+
+    // Reads the records in log order so lookups of many ids turn into a mostly sequential pass
+    @Override
+    public RecordCursor lookup(Collection<String> ids) throws IOException {
+        List<RecordPointer> pointers = new ArrayList<>();
+        Map<RecordPointer, String> keys = new HashMap<>();
+        for (String id : ids) {
+            RecordPointer pointer = index.get(id);
+            if (pointer != null && keys.put(pointer, id) == null) {
+                pointers.add(pointer);
+            }
+        }
+        pointers.sort(Comparator.comparingInt((RecordPointer pointer) -> pointer.segment().id)
+                .thenComparingLong(RecordPointer::offset)
+                .thenComparingInt(RecordPointer::position));
+        return StorageEngine.super.lookup(pointers.stream().map(keys::get).toList());
+    }
+
+    @Override
+    public RecordCursor range(String fromId, String toId) throws IOException {
+        ConcurrentNavigableMap<String, RecordPointer> ids = index;
+        if (fromId != null) {
+            ids = ids.tailMap(fromId, true);
+        }
+        if (toId != null) {
+            ids = ids.headMap(toId, false);
+        }
+        return lookup(ids.keySet());
+    }
+
+    @Override
+    public long version() {
+        synchronized (appendLock) {
+            return sequence;
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        synchronized (appendLock) {
+            lock.writeLock().lock();
+            try {
+                ensureOpen();
+                int nextId = segments.lastKey() + 1;
+                for (Segment segment : segments.values()) {
+                    Files.deleteIfExists(segment.path);
+                    segment.release();
+                }
+                segments.clear();
+                index.clear();
+                tombstones.clear();
+                generation++;
+                sequence++;
+                active = openSegment(nextId);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            lock.writeLock().lock();
+            try {
+                if (closed) return;
+                closed = true;
+                try {
+                    active.channel.force(false);
+                    saveSnapshot();
+                } finally {
+                    for (Segment segment : segments.values()) {
+                        segment.release();
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Deletes the files of a storage that is not open, other files in the directory are kept
+    public static void delete(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX) || name.endsWith(COMPACT_SUFFIX) || name.endsWith(TMP_SUFFIX)
+                        || name.equals(INDEX_SNAPSHOT)) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Storage is closed: " + directory);
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> compacted = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Compaction was interrupted before its output was complete
+                    Files.delete(file);
+                } else if (name.endsWith(COMPACT_SUFFIX)) {
+                    compacted.add(file);
+                }
+            }
+        }
+        // A complete compaction output replaces the segments of its id range, named first-last.compact
+        // (a plain N.compact replaces every segment up to N)
+        for (Path file : compacted) {
+            String name = file.getFileName().toString();
+            String range = name.substring(0, name.length() - COMPACT_SUFFIX.length());
+            int separator = range.indexOf('-');
+            int firstId = separator < 0 ? 0 : Integer.parseInt(range.substring(0, separator));
+            int lastId = Integer.parseInt(range.substring(separator + 1));
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+                for (Path segmentFile : files) {
+                    int id = parseSegmentId(segmentFile, SEGMENT_SUFFIX);
+                    if (id >= firstId && id <= lastId) {
+                        Files.delete(segmentFile);
+                    }
+                }
+            }
+            Files.move(file, segmentPath(lastId), StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                int id = parseSegmentId(file, SEGMENT_SUFFIX);
+                segments.put(id, new Segment(id, file));
+            }
+        }
+
+        // After an interrupted compaction the snapshot no longer matches the segments
+        Map<Integer, Long> covered = compacted.isEmpty() ? loadSnapshot() : null;
+        Files.deleteIfExists(directory.resolve(INDEX_SNAPSHOT));
+
+        long maxSeq = sequence - 1;
+        for (Segment segment : segments.values()) {
+            // Only the records written after the snapshot are read
+            long from = covered != null ? covered.getOrDefault(segment.id, 0L) : 0;
+            if (from == segment.size) continue;
+
+            RecordReader reader = segment.compressed ? new BlockReader(segment) : new SegmentReader(segment, from, segment.size);
+            LogRecord record;
+            long rawSize = 0;
+            while ((record = reader.next()) != null) {
+                rawSize += record.length();
+                maxSeq = Math.max(maxSeq, record.seq());
+                RecordPointer existing = index.get(record.key());
+                Long deleted = tombstones.get(record.key());
+                if ((existing != null && existing.seq() > record.seq()) || (deleted != null && deleted > record.seq())) {
+                    segment.garbage.addAndGet(record.length());
+                    continue;
+                }
+                appended(record.op(), record.key(), new RecordPointer(segment, reader.lastOffset(), reader.lastPosition(),
+                        record.length(), record.seq()));
+            }
+            if (segment.compressed) {
+                segment.rawSize = rawSize;
+            }
+            if (reader instanceof SegmentReader plain && plain.lastEnd() < segment.size) {
+                // Torn write at the end of the log, drop the incomplete record
+                segment.channel.truncate(plain.lastEnd());
+                segment.size = plain.lastEnd();
+            }
+        }
+        sequence = maxSeq + 1;
+
+        if (segments.isEmpty()) {
+            active = openSegment(1);
+        } else if (segments.lastEntry().getValue().compressed) {
+            active = openSegment(segments.lastKey() + 1);
+        } else {
+            active = segments.lastEntry().getValue();
+        }
+        for (Segment segment : segments.values()) {
+            if (segment != active) {
+                segment.seal();
+            }
+        }
+    }
+
+    // Restores the id table written by saveSnapshot(). Returns how many bytes of each segment it covers,
+    // or null if there is no snapshot or it does not match the segments on disk.
+    private Map<Integer, Long> loadSnapshot() throws IOException {
+        Path file = directory.resolve(INDEX_SNAPSHOT);
+        if (!Files.exists(file)) return null;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 64 * 1024))) {
+            if (in.readLong() != SNAPSHOT_MAGIC) return null;
+            long snapshotSequence = in.readLong();
+
+            int segmentCount = in.readInt();
+            Map<Integer, Long> covered = new HashMap<>();
+            long[] garbage = new long[segmentCount];
+            long[] rawSizes = new long[segmentCount];
+            int[] ids = new int[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                ids[i] = in.readInt();
+                long size = in.readLong();
+                garbage[i] = in.readLong();
+                rawSizes[i] = in.readLong();
+                Segment segment = segments.get(ids[i]);
+                // Segments only grow at the end, and compressed ones never change
+                if (segment == null || segment.size < size || (segment.compressed && segment.size != size)) return null;
+                covered.put(ids[i], size);
+            }
+            int lastCovered = covered.keySet().stream().mapToInt(Integer::intValue).max().orElse(0);
+            for (Segment segment : segments.values()) {
+                if (!covered.containsKey(segment.id) && segment.id < lastCovered) return null;
+            }
+
+            int entryCount = in.readInt();
+            Map<String, RecordPointer> pointers = new HashMap<>(entryCount * 4 / 3 + 1);
+            for (int i = 0; i < entryCount; i++) {
+                String key = in.readUTF();
+                Segment segment = segments.get(in.readInt());
+                long offset = in.readLong();
+                int position = in.readInt();
+                int length = in.readInt();
+                long seq = in.readLong();
+                if (segment == null || !covered.containsKey(segment.id)) return null;
+                pointers.put(key, new RecordPointer(segment, offset, position, length, seq));
+            }
+            int tombstoneCount = in.readInt();
+            Map<String, Long> deleted = new HashMap<>(tombstoneCount * 4 / 3 + 1);
+            for (int i = 0; i < tombstoneCount; i++) {
+                deleted.put(in.readUTF(), in.readLong());
+            }
+
+            for (int i = 0; i < segmentCount; i++) {
+                Segment segment = segments.get(ids[i]);
+                segment.garbage.set(garbage[i]);
+                segment.rawSize = rawSizes[i];
+            }
+            index.putAll(pointers);
+            tombstones.putAll(deleted);
+            sequence = snapshotSequence;
+            return covered;
+        } catch (EOFException | UTFDataFormatException e) {
+            return null;
+        }
+    }
+
+    // Caller holds appendLock and the write lock, so the table and the segments do not change meanwhile
+    private void saveSnapshot() throws IOException {
+        Path tmp = directory.resolve(INDEX_SNAPSHOT + TMP_SUFFIX);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+            out.writeLong(SNAPSHOT_MAGIC);
+            out.writeLong(sequence);
+            out.writeInt(segments.size());
+            for (Segment segment : segments.values()) {
+                out.writeInt(segment.id);
+                out.writeLong(segment.size);
+                out.writeLong(segment.garbage.get());
+                out.writeLong(segment.rawSize);
+            }
+            out.writeInt(index.size());
+            for (Map.Entry<String, RecordPointer> entry : index.entrySet()) {
+                RecordPointer pointer = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(pointer.segment().id);
+                out.writeLong(pointer.offset());
+                out.writeInt(pointer.position());
+                out.writeInt(pointer.length());
+                out.writeLong(pointer.seq());
+            }
+            out.writeInt(tombstones.size());
+            for (Map.Entry<String, Long> entry : tombstones.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(INDEX_SNAPSHOT), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Seals the active segment and starts a new one; caller holds appendLock
+    private void roll() throws IOException {
+        active.channel.force(false);
+        active.seal();
+        active = openSegment(active.id + 1);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment(id, segmentPath(id));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Path segmentPath(int id) {
+        return directory.resolve(String.format("%08d", id) + SEGMENT_SUFFIX);
+    }
+
+    private static int parseSegmentId(Path file, String suffix) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(0, name.length() - suffix.length()));
+    }
+
+    // Returns once the compactor is idle; a compaction scheduled by the one that just finished is waited for too
+    void awaitCompaction() throws InterruptedException, ExecutionException {
+        do {
+            compactor.submit(() -> {}).get();
+        } while (compacting.get());
+    }
+
+    private void maybeCompact() {
+        if (closed) return;
+        long total = 0;
+        long garbage = 0;
+        boolean uncompressed = false;
+        Segment current = active;
+        for (Segment segment : segments.values()) {
+            if (segment == current) continue;
+            total += segment.dataSize();
+            garbage += segment.garbage.get();
+            uncompressed |= !segment.compressed;
+        }
+        if (garbage > 0 && garbage >= total * compactionThreshold) {
+            schedule(true);
+        } else if (compression && uncompressed) {
+            schedule(false);
+        }
+    }
+
+    private void schedule(boolean all) {
+        if (compacting.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                boolean done = false;
+                try {
+                    compact(all);
+                    done = true;
+                } catch (IOException e) {
+                    System.err.println("Compaction failed for " + directory + ": " + e.getMessage());
+                } finally {
+                    compacting.set(false);
+                }
+                if (done) {
+                    // More segments may be waiting to be compressed
+                    maybeCompact();
+                }
+            });
+        }
+    }
+
+    // Rewrites the live records of all sealed segments into a single segment, or with all == false
+    // only the oldest sealed segment that is not compressed yet.
+    // The copy runs without locks because sealed segments are immutable; only the final swap takes the write lock.
+    // Tombstones are dropped once the oldest segment is rewritten, since no older version of their id is left then.
+    private void compact(boolean all) throws IOException {
+        List<Segment> sealed = new ArrayList<>();
+        boolean dropTombstones;
+        long startGeneration;
+        synchronized (appendLock) {
+            if (closed) return;
+            startGeneration = generation;
+            for (Segment segment : segments.values()) {
+                if (segment == active || (!all && segment.compressed)) continue;
+                if (segment.retain()) {
+                    sealed.add(segment);
+                    if (!all) break;
+                }
+            }
+            dropTombstones = !sealed.isEmpty() && sealed.getFirst().id == segments.firstKey();
+        }
+        if (sealed.isEmpty()) return;
+
+        try {
+            int firstId = sealed.getFirst().id;
+            int targetId = sealed.getLast().id;
+            String name = String.format("%08d-%08d", firstId, targetId) + COMPACT_SUFFIX;
+            Path tmp = directory.resolve(name + TMP_SUFFIX);
+            Path output = directory.resolve(name);
+            List<MovedRecord> moved = new ArrayList<>();
+            List<LogRecord> dropped = new ArrayList<>();
+            long keptTombstones = 0;
+            long rawSize;
+
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                SegmentWriter writer = new SegmentWriter(channel, compression);
+                for (Segment segment : sealed) {
+                    RecordReader reader = segment.reader();
+                    LogRecord record;
+                    while ((record = reader.next()) != null) {
+                        if (record.op() == OP_DELETE) {
+                            Long deleted = tombstones.get(record.key());
+                            if (deleted == null || deleted != record.seq()) continue;
+                            if (dropTombstones) {
+                                dropped.add(record);
+                                continue;
+                            }
+                            ByteBuffer buffer = encode(record.seq(), record.op(), record.key(), record.data());
+                            keptTombstones += buffer.remaining();
+                            writer.append(buffer);
+                            continue;
+                        }
+                        RecordPointer pointer = index.get(record.key());
+                        if (pointer == null || pointer.seq() != record.seq()) continue;
+
+                        ByteBuffer buffer = encode(record.seq(), record.op(), record.key(), record.data());
+                        writer.append(buffer);
+                        moved.add(new MovedRecord(record.key(), pointer, writer.lastOffset(), writer.lastPosition()));
+                    }
+                }
+                writer.finish();
+                rawSize = writer.rawSize();
+                channel.force(true);
+            }
+
+            lock.writeLock().lock();
+            try {
+                if (closed || generation != startGeneration) {
+                    // The segments were cleared or closed meanwhile; a completed output would bring them back on recovery
+                    Files.deleteIfExists(tmp);
+                    return;
+                }
+                Files.move(tmp, output, StandardCopyOption.ATOMIC_MOVE);
+                for (Segment segment : sealed) {
+                    segments.remove(segment.id);
+                    Files.deleteIfExists(segment.path);
+                    segment.release();
+                }
+                Segment merged = new Segment(targetId, segmentPath(targetId), output);
+                merged.rawSize = rawSize;
+                merged.garbage.set(keptTombstones);
+                merged.seal();
+                segments.put(targetId, merged);
+                for (LogRecord record : dropped) {
+                    tombstones.remove(record.key(), record.seq());
+                }
+                for (MovedRecord record : moved) {
+                    RecordPointer previous = record.previous();
+                    RecordPointer pointer = new RecordPointer(merged, record.offset(), record.position(),
+                            previous.length(), previous.seq());
+                    if (!index.replace(record.key(), previous, pointer)) {
+                        // Superseded while the copy was running
+                        merged.garbage.addAndGet(previous.length());
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            for (Segment segment : sealed) {
+                segment.release();
+            }
+        }
+    }
+
+    private LogRecord readRecord(RecordPointer pointer) throws IOException {
+        Segment segment = pointer.segment();
+        if (pointer.position() < 0) {
+            return decode(segment.read(pointer.offset(), pointer.length()));
+        }
+        byte[] block = blockCache.get(segment, pointer.offset());
+        if (block == null) {
+            block = segment.readBlock(pointer.offset());
+            blockCache.put(segment, pointer.offset(), block);
+        }
+        return decode(ByteBuffer.wrap(block, pointer.position(), pointer.length()).slice());
+    }
+
+    private static ByteBuffer encode(long seq, byte op, String id, byte[] data) {
+        byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xFFFF) {
+            throw new IllegalArgumentException("Id is too long: " + id);
+        }
+        int bodyLength = HEADER_SIZE - PREFIX_SIZE + key.length + data.length;
+        ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + bodyLength);
+        buffer.putInt(bodyLength);
+        buffer.putInt(0);
+        buffer.putLong(seq);
+        buffer.put(op);
+        buffer.putShort((short) key.length);
+        buffer.put(key);
+        buffer.put(data);
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), PREFIX_SIZE, bodyLength);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static LogRecord decode(ByteBuffer buffer) {
+        int length = buffer.remaining();
+        buffer.getInt();
+        buffer.getInt();
+        long seq = buffer.getLong();
+        byte op = buffer.get();
+        byte[] key = new byte[Short.toUnsignedInt(buffer.getShort())];
+        buffer.get(key);
+        byte[] data = new byte[buffer.remaining()];
+        buffer.get(data);
+        return new LogRecord(seq, op, new String(key, StandardCharsets.UTF_8), data, length);
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    // offset is the record position in a plain segment, or the block position in a compressed one;
+    // position is the record position inside the inflated block, -1 in plain segments
+    private record RecordPointer(Segment segment, long offset, int position, int length, long seq) {}
+
+    private record LogRecord(long seq, byte op, String key, byte[] data, int length) {}
+
+    private record MovedRecord(String key, RecordPointer previous, long offset, int position) {}
+
+    private record EncodedRecord(String key, long seq, ByteBuffer buffer) {}
+
+    private record BlockKey(Segment segment, long offset) {}
+
+    private static byte[] inflate(ByteBuffer compressed, int rawLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] raw = new byte[rawLength];
+            int length = 0;
+            while (length < rawLength && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, length, rawLength - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                length += inflated;
+            }
+            if (length != rawLength) {
+                throw new IOException("Corrupted block, inflated " + length + " of " + rawLength + " bytes");
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupted block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static final class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final AtomicLong garbage = new AtomicLong();
+        final boolean compressed;
+        volatile long size;
+        volatile long rawSize; // record bytes before compression, set for compressed segments
+        private volatile ByteBuffer mapped; // read-only mapping, once the segment is sealed
+        private int references = 1; // held by the engine until the segment is dropped
+
+        Segment(int id, Path path) throws IOException {
+            this(id, path, path);
+        }
+
+        // Opens the file before renaming it into place so a failed rename leaves no half-open segment
+        Segment(int id, Path path, Path source) throws IOException {
+            this.id = id;
+            this.path = path;
+            FileChannel channel = FileChannel.open(source, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!source.equals(path)) {
+                try {
+                    Files.move(source, path, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            this.channel = channel;
+            this.size = channel.size();
+            this.compressed = size >= MAGIC_SIZE && read(0, MAGIC_SIZE).getLong() == COMPRESSED_MAGIC;
+        }
+
+        // Size the garbage of the segment is measured against
+        long dataSize() {
+            return compressed ? rawSize : size;
+        }
+
+        RecordReader reader() {
+            return compressed ? new BlockReader(this) : new SegmentReader(this, 0, size);
+        }
+
+        // Called once the segment no longer grows. Later reads are served from the page cache
+        // through a mapping instead of a read call and a heap copy per record.
+        void seal() throws IOException {
+            if (size > 0 && size <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+        }
+
+        synchronized boolean retain() {
+            if (references == 0) return false;
+            references++;
+            return true;
+        }
+
+        synchronized void release() throws IOException {
+            if (--references == 0) {
+                channel.close();
+            }
+        }
+
+        long append(ByteBuffer buffer) throws IOException {
+            long offset = size;
+            size = offset + writeFully(channel, buffer, offset);
+            return offset;
+        }
+
+        ByteBuffer read(long offset, int length) throws IOException {
+            ByteBuffer view = mapped;
+            if (view != null) {
+                if (offset + length > view.capacity()) {
+                    throw new EOFException("Unexpected end of segment " + path);
+                }
+                return view.slice((int) offset, length);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of segment " + path);
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+
+        byte[] readBlock(long offset) throws IOException {
+            ByteBuffer header = read(offset, BLOCK_HEADER_SIZE);
+            int compressedLength = header.getInt();
+            int rawLength = header.getInt();
+            return inflate(read(offset + BLOCK_HEADER_SIZE, compressedLength), rawLength);
+        }
+    }
+
+    private interface RecordReader {
+        // Null at the end or at the first incomplete or corrupted record
+        LogRecord next() throws IOException;
+
+        long lastOffset();
+
+        int lastPosition();
+    }
+
+    // Sequential reader over a segment, stops at the first incomplete or corrupted record
+    private static final class SegmentReader implements RecordReader {
+        private final DataInputStream in;
+        private final long limit;
+        private long position;
+        private long lastOffset;
+
+        SegmentReader(Segment segment, long start, long limit) {
+            this.in = new DataInputStream(new BufferedInputStream(new ChannelInputStream(segment.channel, start, limit), 64 * 1024));
+            this.limit = limit;
+            this.position = start;
+        }
+
+        @Override
+        public LogRecord next() throws IOException {
+            if (limit - position < HEADER_SIZE) return null;
+            try {
+                int bodyLength = in.readInt();
+                int crc = in.readInt();
+                if (bodyLength < HEADER_SIZE - PREFIX_SIZE || bodyLength > limit - position - PREFIX_SIZE) return null;
+
+                byte[] body = new byte[bodyLength];
+                in.readFully(body);
+                CRC32 checksum = new CRC32();
+                checksum.update(body);
+                if ((int) checksum.getValue() != crc) return null;
+
+                ByteBuffer buffer = ByteBuffer.allocate(PREFIX_SIZE + bodyLength);
+                buffer.putInt(bodyLength).putInt(crc).put(body).flip();
+                lastOffset = position;
+                position += PREFIX_SIZE + bodyLength;
+                return decode(buffer);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public long lastOffset() {
+            return lastOffset;
+        }
+
+        @Override
+        public int lastPosition() {
+            return -1;
+        }
+
+        // End of the last complete record
+        long lastEnd() {
+            return position;
+        }
+    }
+
+    // Sequential reader over a compressed segment. Blocks are read in order but inflated on the common pool,
+    // a few blocks ahead of the record being returned.
+    private static final class BlockReader implements RecordReader {
+        private record PendingBlock(long offset, CompletableFuture<byte[]> raw) {}
+
+        private final Segment segment;
+        private final ArrayDeque<PendingBlock> ahead = new ArrayDeque<>();
+        private long nextBlock = MAGIC_SIZE;
+        private ByteBuffer block;
+        private long blockOffset;
+        private int lastPosition;
+
+        BlockReader(Segment segment) {
+            this.segment = segment;
+        }
+
+        @Override
+        public LogRecord next() throws IOException {
+            while (true) {
+                if (block != null && block.remaining() >= HEADER_SIZE) {
+                    int position = block.position();
+                    int bodyLength = block.getInt(position);
+                    if (bodyLength < HEADER_SIZE - PREFIX_SIZE || bodyLength > block.remaining() - PREFIX_SIZE) return null;
+
+                    CRC32 checksum = new CRC32();
+                    checksum.update(block.array(), position + PREFIX_SIZE, bodyLength);
+                    if ((int) checksum.getValue() != block.getInt(position + 4)) return null;
+
+                    lastPosition = position;
+                    block.position(position + PREFIX_SIZE + bodyLength);
+                    return decode(ByteBuffer.wrap(block.array(), position, PREFIX_SIZE + bodyLength).slice());
+                }
+                readAhead();
+                PendingBlock pending = ahead.poll();
+                if (pending == null) return null;
+                try {
+                    block = ByteBuffer.wrap(pending.raw().join());
+                } catch (CompletionException e) {
+                    return null;
+                }
+                blockOffset = pending.offset();
+            }
+        }
+
+        private void readAhead() throws IOException {
+            long limit = segment.size;
+            while (ahead.size() < READ_AHEAD && limit - nextBlock >= BLOCK_HEADER_SIZE) {
+                ByteBuffer header = segment.read(nextBlock, BLOCK_HEADER_SIZE);
+                int compressedLength = header.getInt();
+                int rawLength = header.getInt();
+                if (compressedLength < 0 || rawLength < 0 || compressedLength > limit - nextBlock - BLOCK_HEADER_SIZE) return;
+
+                ByteBuffer compressed = segment.read(nextBlock + BLOCK_HEADER_SIZE, compressedLength);
+                ahead.add(new PendingBlock(nextBlock, CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return inflate(compressed, rawLength);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })));
+                nextBlock += BLOCK_HEADER_SIZE + compressedLength;
+            }
+        }
+
+        @Override
+        public long lastOffset() {
+            return blockOffset;
+        }
+
+        @Override
+        public int lastPosition() {
+            return lastPosition;
+        }
+    }
+
+    // Writes compaction output: records back to back, or packed into deflated blocks of about BLOCK_SIZE
+    private static final class SegmentWriter {
+        private final FileChannel channel;
+        private final boolean compressed;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + BLOCK_SIZE / 4);
+        private final Deflater deflater = new Deflater();
+        private long position;
+        private long rawSize;
+        private long lastOffset;
+        private int lastPosition;
+
+        SegmentWriter(FileChannel channel, boolean compressed) throws IOException {
+            this.channel = channel;
+            this.compressed = compressed;
+            if (compressed) {
+                position = writeFully(channel, ByteBuffer.allocate(MAGIC_SIZE).putLong(COMPRESSED_MAGIC).flip(), 0);
+            }
+        }
+
+        void append(ByteBuffer record) throws IOException {
+            rawSize += record.remaining();
+            if (!compressed) {
+                lastOffset = position;
+                lastPosition = -1;
+                position += writeFully(channel, record, position);
+                return;
+            }
+            lastOffset = position;
+            lastPosition = block.size();
+            block.write(record.array(), record.position(), record.remaining());
+            if (block.size() >= BLOCK_SIZE) {
+                flushBlock();
+            }
+        }
+
+        private void flushBlock() throws IOException {
+            if (block.size() == 0) return;
+
+            byte[] raw = block.toByteArray();
+            deflater.reset();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressedBlock = new ByteArrayOutputStream(raw.length / 2 + 64);
+            byte[] chunk = new byte[16 * 1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(chunk);
+                compressedBlock.write(chunk, 0, length);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(BLOCK_HEADER_SIZE + compressedBlock.size());
+            buffer.putInt(compressedBlock.size()).putInt(raw.length).put(compressedBlock.toByteArray()).flip();
+            position += writeFully(channel, buffer, position);
+            block.reset();
+        }
+
+        void finish() throws IOException {
+            if (compressed) {
+                flushBlock();
+            }
+            deflater.end();
+        }
+
+        long lastOffset() {
+            return lastOffset;
+        }
+
+        int lastPosition() {
+            return lastPosition;
+        }
+
+        long rawSize() {
+            return rawSize;
+        }
+    }
+
+    // Recently inflated blocks, so lookups of records sharing a block inflate it once
+    private static final class BlockCache {
+        private final LinkedHashMap<BlockKey, byte[]> blocks;
+
+        BlockCache(int capacity) {
+            this.blocks = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<BlockKey, byte[]> eldest) {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        synchronized byte[] get(Segment segment, long offset) {
+            return blocks.get(new BlockKey(segment, offset));
+        }
+
+        synchronized void put(Segment segment, long offset, byte[] block) {
+            blocks.put(new BlockKey(segment, offset), block);
+        }
+    }
+
+    // Positional reads so several readers can share one channel
+    private static final class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long limit;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long start, long limit) {
+            this.channel = channel;
+            this.limit = limit;
+            this.position = start;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= limit) return -1;
+            int count = (int) Math.min(len, limit - position);
+            int read = channel.read(ByteBuffer.wrap(b, off, count), position);
+            if (read > 0) position += read;
+            return read;
+        }
+    }
+
+    private class LogCursor implements RecordCursor {
+        private final List<Segment> pending;
+        private Segment segment;
+        private RecordReader reader;
+        private LogRecord current;
+
+        LogCursor(List<Segment> snapshot) {
+            this.pending = new ArrayList<>(snapshot);
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (true) {
+                if (reader == null) {
+                    if (pending.isEmpty()) {
+                        current = null;
+                        return false;
+                    }
+                    segment = pending.removeFirst();
+                    reader = segment.reader();
+                }
+                LogRecord record = reader.next();
+                if (record == null) {
+                    segment.release();
+                    segment = null;
+                    reader = null;
+                    continue;
+                }
+                // Only the latest version of each record is visible
+                RecordPointer pointer = index.get(record.key());
+                if (record.op() == OP_PUT && pointer != null && pointer.seq() == record.seq()) {
+                    current = record;
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public String id() {
+            return current.key();
+        }
+
+        @Override
+        public byte[] data() {
+            return current.data();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (segment != null) {
+                segment.release();
+                segment = null;
+                reader = null;
+            }
+            for (Segment remaining : pending) {
+                remaining.release();
+            }
+            pending.clear();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package JavaObjectPersistency.store;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Identity cache of loaded and saved objects, keyed by class and the string form of the id.
+// Bounded by entry count and/or estimated weight, see CacheConfig.
+// Split into independently locked segments so concurrent threads rarely contend.
+public class ObjectCache {
+    private record Key(Class<?> type, String id) {}
+
+    private static final class Entry {
+        final Object value; // null when the value is held through a reference
+        final KeyedReference reference;
+        final long weight;
+        Long fingerprint; // of the stored record of this id, guarded by the segment
+
+        Entry(Object value, KeyedReference reference, long weight) {
+            this.value = value;
+            this.reference = reference;
+            this.weight = weight;
+        }
+
+        Object get() {
+            return reference != null ? reference.get() : value;
+        }
+    }
+
+    private interface KeyedReference {
+        Key key();
+
+        Object get();
+    }
+
+    private static final class WeakValue extends WeakReference<Object> implements KeyedReference {
+        private final Key key;
+
+        WeakValue(Key key, Object value, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        @Override
+        public Key key() {
+            return key;
+        }
+    }
+
+    private static final class SoftValue extends SoftReference<Object> implements KeyedReference {
+        private final Key key;
+
+        SoftValue(Key key, Object value, ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.key = key;
+        }
+
+        @Override
+        public Key key() {
+            return key;
+        }
+    }
+
+    private final CacheConfig config;
+    private final boolean weighted;
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ObjectCache(CacheConfig config) {
+        this.config = config;
+        this.weighted = config.getMaximumWeight() != Long.MAX_VALUE;
+
+        // Power of two, and never more segments than entries allowed
+        int count = Integer.highestOneBit((int) Math.min(config.getConcurrencyLevel(),
+                Math.max(config.getMaximumSize(), 1)));
+        this.segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            segments[i] = new Segment(share(config.getMaximumSize(), count, i), share(config.getMaximumWeight(), count, i));
+        }
+        this.segmentMask = count - 1;
+    }
+
+    // Splits a limit so the shares add up to exactly the limit
+    private static long share(long limit, int parts, int part) {
+        if (limit == Long.MAX_VALUE) return limit;
+        return limit / parts + (part < limit % parts ? 1 : 0);
+    }
+
+    private Segment segmentFor(Key key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & segmentMask];
+    }
+
+    public Object get(Class<?> type, String id) {
+        Key key = new Key(type, id);
+        Object value = segmentFor(key).get(key);
+        if (value == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return value;
+    }
+
+    public void put(Class<?> type, String id, Object value) {
+        Key key = new Key(type, id);
+        segmentFor(key).put(key, value, false);
+    }
+
+    // Caches the value unless another object with the same id is already cached, and returns the cached one.
+    // Keeps a single instance per id when several threads load the same record at once.
+    public Object intern(Class<?> type, String id, Object value) {
+        Key key = new Key(type, id);
+        return segmentFor(key).put(key, value, true);
+    }
+
+    // Fingerprint of the stored record of a cached id, null if it is not known. It describes the record, not
+    // the cached object, so it survives the entry being refreshed and is dropped with the entry.
+    public Long getFingerprint(Class<?> type, String id) {
+        Key key = new Key(type, id);
+        return segmentFor(key).getFingerprint(key);
+    }
+
+    // Only cached ids keep a fingerprint; ifAbsent keeps a fingerprint that is already known, null forgets it
+    public void setFingerprint(Class<?> type, String id, Long fingerprint, boolean ifAbsent) {
+        Key key = new Key(type, id);
+        segmentFor(key).setFingerprint(key, fingerprint, ifAbsent);
+    }
+
+    public void remove(Class<?> type, String id) {
+        Key key = new Key(type, id);
+        segmentFor(key).remove(key);
+    }
+
+    public void removeAll(Class<?> type) {
+        for (Segment segment : segments) {
+            segment.removeAll(type);
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public CacheStats stats() {
+        long size = 0;
+        long weight = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.purgeCollected();
+                size += segment.entries.size();
+                weight += segment.totalWeight;
+            }
+        }
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), size, weight);
+    }
+
+    // One lock-protected part of the cache with its own share of the limits
+    private final class Segment {
+        private final long maximumSize;
+        private final long maximumWeight;
+        // Access order, the first entry is the least recently used
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final FrequencySketch sketch;
+        private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+        private long totalWeight;
+
+        Segment(long maximumSize, long maximumWeight) {
+            this.maximumSize = maximumSize;
+            this.maximumWeight = maximumWeight;
+            this.sketch = config.getEvictionPolicy() == CacheConfig.EvictionPolicy.FREQUENCY
+                    ? new FrequencySketch(Math.min(maximumSize, 1 << 20))
+                    : null;
+        }
+
+        synchronized Object get(Key key) {
+            purgeCollected();
+            if (sketch != null) {
+                sketch.increment(key);
+            }
+            Entry entry = entries.get(key);
+            return entry != null ? entry.get() : null;
+        }
+
+        synchronized Object put(Key key, Object value, boolean ifAbsent) {
+            purgeCollected();
+            Entry previous = entries.get(key);
+            Object previousValue = previous != null ? previous.get() : null;
+            if (ifAbsent && previousValue != null && previousValue != value) {
+                return previousValue;
+            }
+            if (previous != null) {
+                entries.remove(key);
+                totalWeight -= previous.weight;
+            }
+            // Putting the same object again only refreshes its weight
+            if (sketch != null && previousValue != value) {
+                sketch.increment(key);
+            }
+            long weight = weighted ? estimateWeight(value) : 1;
+            if (!makeRoom(key, weight)) {
+                evictions.increment();
+                return value;
+            }
+            KeyedReference reference = switch (config.getValueReferences()) {
+                case STRONG -> null;
+                case WEAK -> new WeakValue(key, value, collected);
+                case SOFT -> new SoftValue(key, value, collected);
+            };
+            Entry entry = new Entry(reference == null ? value : null, reference, weight);
+            if (previous != null) {
+                entry.fingerprint = previous.fingerprint;
+            }
+            entries.put(key, entry);
+            totalWeight += weight;
+            return value;
+        }
+
+        // Evicts least recently used entries until the new entry fits.
+        // Returns false if the frequency policy decided the new entry is not worth a victim.
+        private boolean makeRoom(Key key, long weight) {
+            if (weight > maximumWeight) return false;
+
+            Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+            while (eldest.hasNext() && (entries.size() + 1 > maximumSize
+                    || totalWeight + weight > maximumWeight)) {
+                Map.Entry<Key, Entry> victim = eldest.next();
+                if (sketch != null && sketch.frequency(key) < sketch.frequency(victim.getKey())) {
+                    return false;
+                }
+                totalWeight -= victim.getValue().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+            return entries.size() + 1 <= maximumSize;
+        }
+
+        synchronized Long getFingerprint(Key key) {
+            Entry entry = entries.get(key);
+            return entry != null && entry.get() != null ? entry.fingerprint : null;
+        }
+
+        synchronized void setFingerprint(Key key, Long fingerprint, boolean ifAbsent) {
+            Entry entry = entries.get(key);
+            if (entry != null && (!ifAbsent || entry.fingerprint == null)) {
+                entry.fingerprint = fingerprint;
+            }
+        }
+
+        synchronized void remove(Key key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                totalWeight -= entry.weight;
+            }
+        }
+
+        synchronized void removeAll(Class<?> type) {
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<Key, Entry> entry = iterator.next();
+                if (entry.getKey().type() == type) {
+                    totalWeight -= entry.getValue().weight;
+                    iterator.remove();
+                }
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            totalWeight = 0;
+        }
+
+        synchronized long size() {
+            purgeCollected();
+            return entries.size();
+        }
+
+        // Drops entries whose weak or soft value was collected
+        private void purgeCollected() {
+            Reference<?> reference;
+            while ((reference = collected.poll()) != null) {
+                Key key = ((KeyedReference) reference).key();
+                Entry entry = entries.get(key);
+                if (entry != null && entry.reference == reference) {
+                    entries.remove(key);
+                    totalWeight -= entry.weight;
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    // Rough shallow size in bytes: object header, one slot per field, plus strings and collection slots.
+    // An unloaded lazy collection is counted by its ids and never loaded, this runs under a segment lock.
+    static long estimateWeight(Object obj) {
+        long weight = 16;
+        for (FieldDescriptor field : ClassDescriptor.of(obj.getClass()).getFields()) {
+            weight += 8;
+            Object value = field.get(obj);
+            if (value instanceof String text) {
+                weight += 40 + 2L * text.length();
+            } else if (value instanceof LazyCollection lazy && !lazy.isLoaded()) {
+                weight += 16 + 8L * lazy.ids().size();
+            } else if (value instanceof Collection<?> collection) {
+                weight += 16 + 8L * collection.size();
+            }
+        }
+        return weight;
+    }
+}
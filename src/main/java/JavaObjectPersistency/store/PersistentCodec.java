@@ -0,0 +1,15 @@
+package JavaObjectPersistency.store;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+// Streaming serializer of one @Persistent class.
+// Implementations are generated at compile time as <SimpleName>_Codec next to the persistent class.
+public interface PersistentCodec<T> {
+    void write(T obj, JsonGenerator generator, CodecContext context) throws IOException;
+
+    // The parser is positioned at the START_OBJECT token of the record
+    T read(JsonParser parser, CodecContext context) throws IOException;
+}
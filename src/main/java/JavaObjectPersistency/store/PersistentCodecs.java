@@ -0,0 +1,38 @@
+package JavaObjectPersistency.store;
+
+import java.util.Optional;
+
+// Finds the generated codec of a @Persistent class, if the annotation processor produced one
+final class PersistentCodecs {
+    static final String SUFFIX = "_Codec";
+
+    private static final ClassValue<Optional<PersistentCodec<?>>> codecs = new ClassValue<>() {
+        @Override
+        protected Optional<PersistentCodec<?>> computeValue(Class<?> type) {
+            try {
+                Class<?> codecClass = Class.forName(codecName(type), true, type.getClassLoader());
+                return Optional.of((PersistentCodec<?>) codecClass.getDeclaredConstructor().newInstance());
+            } catch (ClassNotFoundException e) {
+                return Optional.empty();
+            } catch (ReflectiveOperationException | ClassCastException e) {
+                throw new IllegalStateException("Invalid generated codec for " + type.getName(), e);
+            }
+        }
+    };
+
+    private PersistentCodecs() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> PersistentCodec<T> find(Class<T> type) {
+        return (PersistentCodec<T>) codecs.get(type).orElse(null);
+    }
+
+    // a.b.Outer$Inner -> a.b.Outer_Inner_Codec
+    static String codecName(Class<?> type) {
+        String packageName = type.getPackageName();
+        String binaryName = packageName.isEmpty() ? type.getName() : type.getName().substring(packageName.length() + 1);
+        String simpleName = binaryName.replace('$', '_') + SUFFIX;
+        return packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+    }
+}
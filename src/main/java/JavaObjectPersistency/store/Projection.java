@@ -0,0 +1,148 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.annotations.FieldAlias;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+// Reads selected top-level fields of stored records without creating the persistent object. The other
+// fields are skipped unparsed and references are never loaded: a reference field gives its stored id.
+final class Projection<P> {
+    private final ObjectMapper mapper;
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final JavaType[] types;
+    private final Function<Object[], P> factory;
+
+    private Projection(ObjectMapper mapper, List<String> names, JavaType[] types, Function<Object[], P> factory) {
+        this.mapper = mapper;
+        for (int i = 0; i < names.size(); i++) {
+            slots.put(names.get(i), i);
+        }
+        this.types = types;
+        this.factory = factory;
+    }
+
+    // Maps of the stored field names to their values, in the requested order
+    static Projection<Map<String, Object>> ofFields(ObjectMapper mapper, Class<?> type, String... fields) {
+        List<String> names = List.of(fields);
+        checkFields(type, names);
+        JavaType[] types = new JavaType[names.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = mapper.constructType(Object.class);
+        }
+        return new Projection<>(mapper, names, types, values -> {
+            Map<String, Object> result = new LinkedHashMap<>();
+            for (int i = 0; i < values.length; i++) {
+                result.put(names.get(i), values[i]);
+            }
+            return result;
+        });
+    }
+
+    // A record is created through its canonical constructor, a class through its default constructor and its
+    // fields. Fields are matched by name or by @FieldAlias against the stored names.
+    static <P> Projection<P> of(ObjectMapper mapper, Class<?> type, Class<P> projection) {
+        List<Field> fields = new ArrayList<>();
+        for (Field field : projection.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+            fields.add(field);
+        }
+        List<String> names = new ArrayList<>(fields.size());
+        JavaType[] types = new JavaType[fields.size()];
+        for (int i = 0; i < fields.size(); i++) {
+            Field field = fields.get(i);
+            FieldAlias alias = field.getAnnotation(FieldAlias.class);
+            names.add(alias != null ? alias.value() : field.getName());
+            types[i] = mapper.constructType(field.getGenericType());
+        }
+        checkFields(type, names);
+
+        try {
+            if (projection.isRecord()) {
+                Class<?>[] parameters = fields.stream().map(Field::getType).toArray(Class<?>[]::new);
+                Constructor<P> constructor = projection.getDeclaredConstructor(parameters);
+                constructor.setAccessible(true);
+                return new Projection<>(mapper, names, types, values -> {
+                    for (int i = 0; i < values.length; i++) {
+                        if (values[i] == null && parameters[i].isPrimitive()) {
+                            values[i] = Array.get(Array.newInstance(parameters[i], 1), 0);
+                        }
+                    }
+                    return newInstance(constructor, values);
+                });
+            }
+            Constructor<P> constructor = projection.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            for (Field field : fields) {
+                field.setAccessible(true);
+            }
+            return new Projection<>(mapper, names, types, values -> {
+                P result = newInstance(constructor);
+                try {
+                    for (int i = 0; i < values.length; i++) {
+                        // A missing value leaves a primitive field at its default
+                        if (values[i] != null || !fields.get(i).getType().isPrimitive()) {
+                            fields.get(i).set(result, values[i]);
+                        }
+                    }
+                } catch (IllegalAccessException e) {
+                    throw new RuntimeException("Error filling projection " + projection.getName(), e);
+                }
+                return result;
+            });
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("No default constructor in projection class " + projection.getName());
+        }
+    }
+
+    private static void checkFields(Class<?> type, List<String> names) {
+        ClassDescriptor descriptor = ClassDescriptor.of(type);
+        for (String name : names) {
+            if (descriptor.getField(name) == null) {
+                throw new IllegalArgumentException("No field " + name + " in class " + type.getName());
+            }
+        }
+    }
+
+    private static <P> P newInstance(Constructor<P> constructor, Object... arguments) {
+        try {
+            return constructor.newInstance(arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Error creating projection " + constructor.getDeclaringClass().getName(), e);
+        }
+    }
+
+    P read(byte[] data) throws IOException {
+        Object[] values = new Object[types.length];
+        try (JsonParser parser = StorageFormat.of(data).factory().createParser(data)) {
+            parser.nextToken();
+            int found = 0;
+            while (found < values.length && parser.nextToken() == JsonToken.FIELD_NAME) {
+                Integer slot = slots.get(parser.currentName());
+                parser.nextToken();
+                if (slot == null) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (parser.currentToken() != JsonToken.VALUE_NULL) {
+                    values[slot] = mapper.readValue(parser, types[slot]);
+                }
+                found++;
+            }
+        }
+        return factory.apply(values);
+    }
+}
@@ -0,0 +1,13 @@
+package JavaObjectPersistency.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+public interface RecordCursor extends Closeable {
+    // Moves to the next record, returns false when there are no more records
+    boolean next() throws IOException;
+
+    String id();
+
+    byte[] data();
+}
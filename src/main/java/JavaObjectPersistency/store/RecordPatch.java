@@ -0,0 +1,103 @@
+package JavaObjectPersistency.store;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// New values for some top-level fields of stored records. A record is patched token by token: the other
+// fields are copied unparsed and no object is created. Values are converted to the field types first,
+// so they are stored exactly as a save would store them.
+final class RecordPatch {
+    private final ObjectMapper mapper;
+    private final Map<FieldDescriptor, Object> values = new LinkedHashMap<>();
+    private final Map<String, Object> storedValues = new LinkedHashMap<>();
+
+    RecordPatch(ObjectMapper mapper, Class<?> type, Map<String, ?> patch) {
+        this.mapper = mapper;
+        ClassDescriptor descriptor = ClassDescriptor.of(type);
+        for (Map.Entry<String, ?> entry : patch.entrySet()) {
+            FieldDescriptor field = descriptor.getField(entry.getKey());
+            if (field == null) {
+                throw new IllegalArgumentException("No field " + entry.getKey() + " in class " + type.getName());
+            }
+            if (field.isId()) {
+                throw new IllegalArgumentException("The id of a record cannot be updated");
+            }
+            if (isReference(field)) {
+                throw new IllegalArgumentException("Reference field " + entry.getKey() + " cannot be updated in place,"
+                        + " save the object instead");
+            }
+            Object value = entry.getValue() == null && field.getType().isPrimitive()
+                    ? mapper.convertValue(0, field.getType())
+                    : mapper.convertValue(entry.getValue(), mapper.constructType(field.getGenericType()));
+            values.put(field, value);
+            storedValues.put(field.getJsonName(), value);
+        }
+    }
+
+    private static boolean isReference(FieldDescriptor field) {
+        return field.isRef() || field.isLazy() || ClassDescriptor.isPersistent(field.getType())
+                || field.isCollection() && field.getElementType() != null
+                && ClassDescriptor.isPersistent(field.getElementType());
+    }
+
+    // The record with the patched fields, in the format it was written in. Fields missing from the record
+    // are added at the end.
+    byte[] apply(byte[] data) throws IOException {
+        StorageFormat format = StorageFormat.of(data);
+        Set<String> written = new HashSet<>();
+        try (ByteArrayBuilder buffer = new ByteArrayBuilder()) {
+            try (JsonParser parser = format.factory().createParser(data);
+                 JsonGenerator generator = format.factory().createGenerator(buffer)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    throw new IOException("Stored record is not an object");
+                }
+                generator.writeStartObject();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.currentName();
+                    if (storedValues.containsKey(name) && written.add(name)) {
+                        parser.nextToken();
+                        parser.skipChildren();
+                        writeField(generator, name);
+                    } else {
+                        generator.copyCurrentStructure(parser);
+                    }
+                }
+                for (String name : storedValues.keySet()) {
+                    if (!written.contains(name)) {
+                        writeField(generator, name);
+                    }
+                }
+                generator.writeEndObject();
+            }
+            return buffer.toByteArray();
+        }
+    }
+
+    private void writeField(JsonGenerator generator, String name) throws IOException {
+        generator.writeFieldName(name);
+        mapper.writeValue(generator, storedValues.get(name));
+    }
+
+    // Applies the patch to a loaded object of the record, so it agrees with the storage. Every object gets its
+    // own copy of a mutable value.
+    void applyTo(Object obj) throws IOException {
+        for (Map.Entry<FieldDescriptor, Object> entry : values.entrySet()) {
+            FieldDescriptor field = entry.getKey();
+            Object value = entry.getValue();
+            if (!(value == null || value instanceof String || value instanceof Number || value instanceof Boolean
+                    || value instanceof Character || value instanceof Enum<?>)) {
+                value = mapper.readValue(mapper.writeValueAsBytes(value), mapper.constructType(field.getGenericType()));
+            }
+            field.set(obj, value);
+        }
+    }
+}
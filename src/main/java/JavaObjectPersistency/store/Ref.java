@@ -0,0 +1,61 @@
+package JavaObjectPersistency.store;
+
+import java.util.List;
+
+// Reference to a @Persistent object that is loaded on the first get() instead of with its owner.
+// Stored as the id of the target, the same way as a plain reference field.
+public final class Ref<T> {
+    private final JsonStore store; // null for references created by the application
+    private final Class<T> type;
+    private final Object id;
+    private volatile boolean loaded;
+    private T value;
+
+    Ref(JsonStore store, Class<T> type, Object id) {
+        this.store = store;
+        this.type = type;
+        this.id = id;
+    }
+
+    private Ref(T value) {
+        this.store = null;
+        this.type = null;
+        this.id = null;
+        this.value = value;
+        this.loaded = true;
+    }
+
+    public static <T> Ref<T> of(T value) {
+        return new Ref<>(value);
+    }
+
+    // Loads the target from the store that read the owner, null if its record no longer exists
+    public T get() {
+        if (!loaded) {
+            synchronized (this) {
+                if (!loaded) {
+                    value = store.resolveReferences(type, List.of(id)).getFirst();
+                    loaded = true;
+                }
+            }
+        }
+        return value;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    // Id of the target, known without loading it
+    public Object getId() {
+        if (loaded) {
+            return value == null ? null : ClassDescriptor.of(value.getClass()).getId(value);
+        }
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return loaded ? "Ref{" + value + "}" : "Ref{id=" + id + "}";
+    }
+}
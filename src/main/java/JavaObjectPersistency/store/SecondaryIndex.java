@@ -0,0 +1,106 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.query.Ordering;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+// Index over one top-level field of the stored records: a hash index on every scalar value
+// and a sorted index in query result order (numbers, then text, then booleans). Keys are String, Double or Boolean.
+final class SecondaryIndex {
+    private final Map<Object, Set<String>> hash = new HashMap<>();
+    private final NavigableMap<Object, Set<String>> sorted = new TreeMap<>(Ordering::compareValues);
+    private final Map<String, Object> values = new HashMap<>(); // id -> indexed key
+
+    synchronized void put(String id, Object key) {
+        remove(id);
+        if (key == null) return;
+
+        values.put(id, key);
+        hash.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+        sorted.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+    }
+
+    synchronized void remove(String id) {
+        Object key = values.remove(id);
+        if (key == null) return;
+
+        removeFrom(hash, key, id);
+        removeFrom(sorted, key, id);
+    }
+
+    private static <K> void removeFrom(Map<K, Set<String>> map, K key, String id) {
+        Set<String> ids = map.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    synchronized Set<String> equalTo(Object key) {
+        Set<String> ids = hash.get(key);
+        return ids == null ? Collections.emptySet() : new HashSet<>(ids);
+    }
+
+    // Bounds are exclusive
+    synchronized Set<String> between(double from, double to) {
+        Set<String> ids = new HashSet<>();
+        if (from >= to) return ids;
+        for (Set<String> matching : sorted.subMap(from, false, to, false).values()) {
+            ids.addAll(matching);
+        }
+        return ids;
+    }
+
+    // Adds the ids of whole keys that follow afterKey (from the first key if null) in sorted order until
+    // into holds at least minIds; ids of one key are added in ascending order. Returns the last key added,
+    // or null when the index has no more keys.
+    synchronized Object collectOrdered(boolean descending, Object afterKey, int minIds, List<String> into) {
+        NavigableMap<Object, Set<String>> keys = descending ? sorted.descendingMap() : sorted;
+        if (afterKey != null) {
+            keys = keys.tailMap(afterKey, false);
+        }
+        for (Map.Entry<Object, Set<String>> entry : keys.entrySet()) {
+            List<String> ids = new ArrayList<>(entry.getValue());
+            Collections.sort(ids);
+            into.addAll(ids);
+            if (into.size() >= minIds) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    // Number of indexed records
+    synchronized int size() {
+        return values.size();
+    }
+
+    synchronized Map<String, Object> values() {
+        return new HashMap<>(values);
+    }
+
+    synchronized void clear() {
+        hash.clear();
+        sorted.clear();
+        values.clear();
+    }
+
+    // Normalizes a stored scalar to an index key, null for values that are not indexed
+    static Object key(Object value) {
+        if (value instanceof Number number) {
+            double d = number.doubleValue();
+            return d == 0 ? 0.0 : d; // -0.0 equals 0.0 in queries
+        }
+        if (value instanceof String || value instanceof Boolean) {
+            return value;
+        }
+        return null;
+    }
+}
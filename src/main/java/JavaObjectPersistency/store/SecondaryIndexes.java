@@ -0,0 +1,154 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.query.IndexLookup;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// The @Indexed field indexes of one persistent class. They are updated on every save and written
+// to a snapshot file on close; the snapshot is reused on the next open only if the storage has not
+// been written since, otherwise the indexes are rebuilt with a single scan.
+final class SecondaryIndexes implements IndexLookup {
+    private final Path snapshotFile;
+    private final Map<String, SecondaryIndex> indexes = new LinkedHashMap<>();
+
+    SecondaryIndexes(Path snapshotFile, List<String> fields) {
+        this.snapshotFile = snapshotFile;
+        for (String field : fields) {
+            indexes.put(field, new SecondaryIndex());
+        }
+    }
+
+    void open(StorageEngine storage, ObjectMapper mapper) throws IOException {
+        if (!loadSnapshot(storage, mapper)) {
+            rebuild(storage);
+        }
+    }
+
+    private boolean loadSnapshot(StorageEngine storage, ObjectMapper mapper) throws IOException {
+        if (!Files.exists(snapshotFile)) return false;
+
+        JsonNode snapshot = mapper.readTree(snapshotFile.toFile());
+        if (snapshot.path("version").asLong(-1) != storage.version()) return false;
+        JsonNode fields = snapshot.path("fields");
+        for (String field : indexes.keySet()) {
+            if (!fields.has(field)) return false;
+        }
+
+        for (Map.Entry<String, SecondaryIndex> entry : indexes.entrySet()) {
+            Iterator<Map.Entry<String, JsonNode>> values = fields.get(entry.getKey()).fields();
+            while (values.hasNext()) {
+                Map.Entry<String, JsonNode> value = values.next();
+                entry.getValue().put(value.getKey(), key(value.getValue()));
+            }
+        }
+        return true;
+    }
+
+    private void rebuild(StorageEngine storage) throws IOException {
+        clear();
+        try (RecordCursor cursor = storage.scan()) {
+            while (cursor.next()) {
+                update(cursor.id(), cursor.data());
+            }
+        }
+    }
+
+    void save(StorageEngine storage, ObjectMapper mapper) throws IOException {
+        ObjectNode snapshot = mapper.createObjectNode();
+        snapshot.put("version", storage.version());
+        ObjectNode fields = snapshot.putObject("fields");
+        for (Map.Entry<String, SecondaryIndex> entry : indexes.entrySet()) {
+            fields.set(entry.getKey(), mapper.valueToTree(entry.getValue().values()));
+        }
+
+        Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        mapper.writeValue(tmp.toFile(), snapshot);
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Re-indexes a record from its stored form
+    void update(String id, byte[] data) throws IOException {
+        Map<String, Object> keys = new HashMap<>();
+        try (JsonParser parser = StorageFormat.of(data).factory().createParser(data)) {
+            if (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (keys.size() < indexes.size() && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    JsonToken token = parser.nextToken();
+                    if (!indexes.containsKey(field)) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    keys.put(field, switch (token) {
+                        case VALUE_STRING -> parser.getText();
+                        case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> SecondaryIndex.key(parser.getDoubleValue());
+                        case VALUE_TRUE, VALUE_FALSE -> parser.getBooleanValue();
+                        default -> {
+                            parser.skipChildren();
+                            yield null;
+                        }
+                    });
+                }
+            }
+        }
+        for (Map.Entry<String, SecondaryIndex> entry : indexes.entrySet()) {
+            entry.getValue().put(id, keys.get(entry.getKey()));
+        }
+    }
+
+    void remove(String id) {
+        for (SecondaryIndex index : indexes.values()) {
+            index.remove(id);
+        }
+    }
+
+    void clear() {
+        for (SecondaryIndex index : indexes.values()) {
+            index.clear();
+        }
+    }
+
+    private static Object key(JsonNode value) {
+        if (value.isTextual()) return value.asText();
+        if (value.isNumber()) return SecondaryIndex.key(value.asDouble());
+        if (value.isBoolean()) return value.asBoolean();
+        return null;
+    }
+
+    // Index of a field, null if it is not indexed
+    SecondaryIndex get(String field) {
+        return indexes.get(field);
+    }
+
+    @Override
+    public boolean isIndexed(String field) {
+        return indexes.containsKey(field);
+    }
+
+    @Override
+    public Set<String> equalTo(String field, Object key) {
+        SecondaryIndex index = indexes.get(field);
+        Object normalized = SecondaryIndex.key(key);
+        return index == null || normalized == null ? Collections.emptySet() : index.equalTo(normalized);
+    }
+
+    @Override
+    public Set<String> between(String field, double from, double to) {
+        SecondaryIndex index = indexes.get(field);
+        return index == null ? Collections.emptySet() : index.between(from, to);
+    }
+}
@@ -0,0 +1,253 @@
+package JavaObjectPersistency.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Spreads the records of one class over several log storages by hash of the id. Every shard has its own
+// append lock and files, so writes to different shards run in parallel and scans read the shards concurrently.
+// Shard i lives in the subdirectory i of the given directory.
+public class ShardedStorageEngine implements StorageEngine {
+    private final LogStorageEngine[] shards;
+
+    public ShardedStorageEngine(Path directory, int shardCount, boolean compression) throws IOException {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        this.shards = new LogStorageEngine[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new LogStorageEngine(directory.resolve(Integer.toString(i)), LogStorageEngine.DEFAULT_SEGMENT_SIZE,
+                        LogStorageEngine.DEFAULT_COMPACTION_THRESHOLD, compression);
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private LogStorageEngine shardFor(String id) {
+        int hash = id.hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+
+    public void setCompression(boolean compression) {
+        for (LogStorageEngine shard : shards) {
+            shard.setCompression(compression);
+        }
+    }
+
+    @Override
+    public void put(String id, byte[] data) throws IOException {
+        shardFor(id).put(id, data);
+    }
+
+    // Each shard writes its part of the batch on its own thread
+    @Override
+    public void putAll(Map<String, byte[]> records) throws IOException {
+        Map<LogStorageEngine, Map<String, byte[]>> perShard = new HashMap<>();
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            perShard.computeIfAbsent(shardFor(record.getKey()), k -> new LinkedHashMap<>())
+                    .put(record.getKey(), record.getValue());
+        }
+        try {
+            perShard.entrySet().parallelStream().forEach(entry -> {
+                try {
+                    entry.getKey().putAll(entry.getValue());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public boolean delete(String id) throws IOException {
+        return shardFor(id).delete(id);
+    }
+
+    @Override
+    public int deleteAll(Collection<String> ids) throws IOException {
+        Map<LogStorageEngine, List<String>> perShard = new HashMap<>();
+        for (String id : ids) {
+            perShard.computeIfAbsent(shardFor(id), k -> new ArrayList<>()).add(id);
+        }
+        int deleted = 0;
+        for (Map.Entry<LogStorageEngine, List<String>> entry : perShard.entrySet()) {
+            deleted += entry.getKey().deleteAll(entry.getValue());
+        }
+        return deleted;
+    }
+
+    // Shards are forced in parallel, each is a separate file
+    @Override
+    public void sync() throws IOException {
+        try {
+            Arrays.stream(shards).parallel().forEach(shard -> {
+                try {
+                    shard.sync();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Override
+    public byte[] get(String id) throws IOException {
+        return shardFor(id).get(id);
+    }
+
+    @Override
+    public boolean contains(String id) {
+        return shardFor(id).contains(id);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (LogStorageEngine shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public RecordCursor scan() throws IOException {
+        return new ConcatCursor(scanPartitions());
+    }
+
+    @Override
+    public List<RecordCursor> scanPartitions() throws IOException {
+        List<RecordCursor> cursors = new ArrayList<>(shards.length);
+        try {
+            for (LogStorageEngine shard : shards) {
+                cursors.addAll(shard.scanPartitions());
+            }
+        } catch (IOException | RuntimeException e) {
+            for (RecordCursor cursor : cursors) {
+                cursor.close();
+            }
+            throw e;
+        }
+        return cursors;
+    }
+
+    @Override
+    public RecordCursor lookup(Collection<String> ids) throws IOException {
+        Map<LogStorageEngine, List<String>> perShard = new LinkedHashMap<>();
+        for (String id : ids) {
+            perShard.computeIfAbsent(shardFor(id), k -> new ArrayList<>()).add(id);
+        }
+        List<RecordCursor> cursors = new ArrayList<>(perShard.size());
+        for (Map.Entry<LogStorageEngine, List<String>> entry : perShard.entrySet()) {
+            cursors.add(entry.getKey().lookup(entry.getValue()));
+        }
+        return new ConcatCursor(cursors);
+    }
+
+    // Records come shard by shard, each shard in id order
+    @Override
+    public RecordCursor range(String fromId, String toId) throws IOException {
+        List<RecordCursor> cursors = new ArrayList<>(shards.length);
+        for (LogStorageEngine shard : shards) {
+            cursors.add(shard.range(fromId, toId));
+        }
+        return new ConcatCursor(cursors);
+    }
+
+    @Override
+    public long version() {
+        long version = 0;
+        for (LogStorageEngine shard : shards) {
+            version += shard.version();
+        }
+        return version;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (LogStorageEngine shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (LogStorageEngine shard : shards) {
+            if (shard == null) continue;
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Deletes the files of a sharded storage that is not open
+    public static void delete(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) return;
+        try (DirectoryStream<Path> shardDirectories = Files.newDirectoryStream(directory)) {
+            for (Path shard : shardDirectories) {
+                LogStorageEngine.delete(shard);
+                Files.deleteIfExists(shard);
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    // Reads several cursors one after another
+    private static final class ConcatCursor implements RecordCursor {
+        private final List<RecordCursor> cursors;
+        private int current;
+
+        ConcatCursor(List<RecordCursor> cursors) {
+            this.cursors = cursors;
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            while (current < cursors.size()) {
+                if (cursors.get(current).next()) return true;
+                cursors.get(current).close();
+                current++;
+            }
+            return false;
+        }
+
+        @Override
+        public String id() {
+            return cursors.get(current).id();
+        }
+
+        @Override
+        public byte[] data() {
+            return cursors.get(current).data();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (int i = current; i < cursors.size(); i++) {
+                cursors.get(i).close();
+            }
+            current = cursors.size();
+        }
+    }
+}
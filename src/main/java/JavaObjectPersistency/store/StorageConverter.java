@@ -0,0 +1,94 @@
+package JavaObjectPersistency.store;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Offline rewrite of stored records into another StorageFormat. Run it while no JsonStore has the storage open:
+//   StorageConverter <SimpleName>.log SMILE    converts a log storage in place
+//   StorageConverter <SimpleName>.json CBOR    imports a legacy single-file table into <SimpleName>.log
+public final class StorageConverter {
+    private static final int BATCH_SIZE = 1000;
+
+    private StorageConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: StorageConverter <storage directory | legacy .json file> <JSON|SMILE|CBOR>");
+            System.exit(2);
+        }
+        Path source = Path.of(args[0]);
+        StorageFormat format = StorageFormat.valueOf(args[1].toUpperCase());
+
+        int converted;
+        if (Files.isDirectory(source)) {
+            converted = convert(source, format);
+        } else {
+            String name = source.getFileName().toString();
+            Path target = source.resolveSibling(name.substring(0, name.length() - ".json".length()) + ".log");
+            converted = importLegacy(source, target, format);
+        }
+        System.out.println("Converted " + converted + " records of " + source + " to " + format);
+    }
+
+    // Rewrites every record of the storage that is not in the given format yet, returns how many were rewritten.
+    // The old versions become garbage and are dropped by the next compaction.
+    public static int convert(Path storageDirectory, StorageFormat format) throws IOException {
+        int converted = 0;
+        try (LogStorageEngine storage = new LogStorageEngine(storageDirectory)) {
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            try (RecordCursor cursor = storage.scan()) {
+                while (cursor.next()) {
+                    StorageFormat current = StorageFormat.of(cursor.data());
+                    if (current == format) continue;
+
+                    JsonNode record = current.mapper().readTree(cursor.data());
+                    batch.put(cursor.id(), format.mapper().writeValueAsBytes(record));
+                    if (batch.size() == BATCH_SIZE) {
+                        converted += flush(storage, batch);
+                    }
+                }
+            }
+            converted += flush(storage, batch);
+        }
+        return converted;
+    }
+
+    // Copies the records of a <SimpleName>.json table into a log storage and moves the file aside,
+    // the same way JsonStore migrates it on first use but in the chosen format
+    public static int importLegacy(Path legacyFile, Path storageDirectory, StorageFormat format) throws IOException {
+        int imported = 0;
+        try (LogStorageEngine storage = new LogStorageEngine(storageDirectory)) {
+            JsonNode table = StorageFormat.JSON.mapper().readTree(legacyFile.toFile());
+            Map<String, byte[]> batch = new LinkedHashMap<>();
+            Iterator<Map.Entry<String, JsonNode>> records = table.fields();
+            while (records.hasNext()) {
+                Map.Entry<String, JsonNode> record = records.next();
+                batch.put(record.getKey(), format.mapper().writeValueAsBytes(record.getValue()));
+                if (batch.size() == BATCH_SIZE) {
+                    imported += flush(storage, batch);
+                }
+            }
+            imported += flush(storage, batch);
+        }
+        Files.move(legacyFile, legacyFile.resolveSibling(legacyFile.getFileName() + ".migrated"),
+                StandardCopyOption.REPLACE_EXISTING);
+        return imported;
+    }
+
+    private static int flush(StorageEngine storage, Map<String, byte[]> batch) throws IOException {
+        int size = batch.size();
+        if (size > 0) {
+            storage.putAll(batch);
+            batch.clear();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,121 @@
+package JavaObjectPersistency.store;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Storage of serialized records for one persistent class, keyed by the string form of the @Id
+public interface StorageEngine extends Closeable {
+    void put(String id, byte[] data) throws IOException;
+
+    // Writes several records at once, engines override it to avoid a write per record
+    default void putAll(Map<String, byte[]> records) throws IOException {
+        for (Map.Entry<String, byte[]> record : records.entrySet()) {
+            put(record.getKey(), record.getValue());
+        }
+    }
+
+    // Removes the record, returns false if there was none
+    boolean delete(String id) throws IOException;
+
+    // Removes several records at once, returns how many of them existed
+    default int deleteAll(Collection<String> ids) throws IOException {
+        int deleted = 0;
+        for (String id : ids) {
+            if (delete(id)) deleted++;
+        }
+        return deleted;
+    }
+
+    // Forces the records written so far to disk
+    void sync() throws IOException;
+
+    // Returns null if there is no record with this id
+    byte[] get(String id) throws IOException;
+
+    boolean contains(String id);
+
+    int size();
+
+    // Iterates over the latest version of every record
+    RecordCursor scan() throws IOException;
+
+    // Independent cursors that together cover scan(), so a scan can be spread over several threads
+    default List<RecordCursor> scanPartitions() throws IOException {
+        return List.of(scan());
+    }
+
+    // Iterates over the records with the given ids, ids without a record are skipped
+    default RecordCursor lookup(Collection<String> ids) throws IOException {
+        Iterator<String> remaining = ids.iterator();
+        return new RecordCursor() {
+            private String id;
+            private byte[] data;
+
+            @Override
+            public boolean next() throws IOException {
+                while (remaining.hasNext()) {
+                    id = remaining.next();
+                    data = get(id);
+                    if (data != null) return true;
+                }
+                return false;
+            }
+
+            @Override
+            public String id() {
+                return id;
+            }
+
+            @Override
+            public byte[] data() {
+                return data;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    // Iterates over the records whose ids sort in [fromId, toId), a null bound is open.
+    // Engines that keep their ids sorted override it to skip the records outside the range.
+    default RecordCursor range(String fromId, String toId) throws IOException {
+        RecordCursor all = scan();
+        return new RecordCursor() {
+            @Override
+            public boolean next() throws IOException {
+                while (all.next()) {
+                    String id = all.id();
+                    if ((fromId == null || id.compareTo(fromId) >= 0) && (toId == null || id.compareTo(toId) < 0)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String id() {
+                return all.id();
+            }
+
+            @Override
+            public byte[] data() {
+                return all.data();
+            }
+
+            @Override
+            public void close() throws IOException {
+                all.close();
+            }
+        };
+    }
+
+    // Changes with every write, used to tell whether derived data saved earlier is still current
+    long version();
+
+    void clear() throws IOException;
+}
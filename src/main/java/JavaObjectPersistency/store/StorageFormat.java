@@ -0,0 +1,46 @@
+package JavaObjectPersistency.store;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+// Encoding of the stored records. Every format starts with its own marker bytes, so a storage can hold
+// records of several formats and each record is read with the format it was written in.
+public enum StorageFormat {
+    // Compact JSON text
+    JSON(new JsonFactory()),
+    // Jackson Smile, starts with the ":)\n" header
+    SMILE(SmileFactory.builder().build()),
+    // CBOR, starts with the self-describe tag 0xD9D9F7
+    CBOR(CBORFactory.builder().enable(CBORGenerator.Feature.WRITE_TYPE_HEADER).build());
+
+    private final ObjectMapper mapper;
+
+    StorageFormat(JsonFactory factory) {
+        this.mapper = new ObjectMapper(factory);
+    }
+
+    public JsonFactory factory() {
+        return mapper.getFactory();
+    }
+
+    // Thread-safe, shared by all stores
+    ObjectMapper mapper() {
+        return mapper;
+    }
+
+    // Format a record was written in
+    public static StorageFormat of(byte[] data) {
+        if (data.length >= 3) {
+            if (data[0] == ':' && data[1] == ')' && data[2] == '\n') {
+                return SMILE;
+            }
+            if ((data[0] & 0xFF) == 0xD9 && (data[1] & 0xFF) == 0xD9 && (data[2] & 0xFF) == 0xF7) {
+                return CBOR;
+            }
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,143 @@
+package JavaObjectPersistency.store;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Objects saved in write-behind mode that are not written yet, keyed by class and id, so repeated saves of
+// an object keep a single entry and only its latest state is written. JsonStore writes them on flush(),
+// once maxObjects are buffered, every flushInterval and from a shutdown hook.
+final class WriteBuffer {
+    record Entry(Object object, long generation) {}
+
+    private static final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "write-behind");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final JsonStore store;
+    private final int maxObjects;
+    private final Duration flushInterval;
+    private final Map<Class<?>, Map<String, Entry>> entries = new HashMap<>();
+    private long generation;
+    private int size;
+    // Armed by the first buffered object, so a closed store leaves no timer or hook behind
+    private ScheduledFuture<?> timer;
+    private Thread shutdownHook;
+
+    WriteBuffer(JsonStore store, int maxObjects, Duration flushInterval) {
+        this.store = store;
+        this.maxObjects = maxObjects;
+        this.flushInterval = flushInterval;
+    }
+
+    // Returns true once the buffer is full and should be flushed
+    synchronized boolean add(Object obj, String id) {
+        Entry previous = entries.computeIfAbsent(obj.getClass(), k -> new LinkedHashMap<>())
+                .put(id, new Entry(obj, ++generation));
+        if (previous == null) {
+            size++;
+        }
+        arm();
+        return size >= maxObjects;
+    }
+
+    synchronized Object get(Class<?> type, String id) {
+        Map<String, Entry> typeEntries = entries.get(type);
+        Entry entry = typeEntries != null ? typeEntries.get(id) : null;
+        return entry != null ? entry.object() : null;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Copy of the entries of one class, or of every class if type is null
+    synchronized Map<Class<?>, Map<String, Entry>> snapshot(Class<?> type) {
+        Map<Class<?>, Map<String, Entry>> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<Class<?>, Map<String, Entry>> typeEntries : entries.entrySet()) {
+            if (type == null || typeEntries.getKey() == type) {
+                snapshot.put(typeEntries.getKey(), new LinkedHashMap<>(typeEntries.getValue()));
+            }
+        }
+        return snapshot;
+    }
+
+    // Drops the written entries; an object saved again while it was being written stays buffered
+    synchronized void written(Map<Class<?>, Map<String, Entry>> snapshot) {
+        for (Map.Entry<Class<?>, Map<String, Entry>> typeEntries : snapshot.entrySet()) {
+            Map<String, Entry> current = entries.get(typeEntries.getKey());
+            if (current == null) continue;
+            for (Map.Entry<String, Entry> entry : typeEntries.getValue().entrySet()) {
+                if (current.remove(entry.getKey(), entry.getValue())) {
+                    size--;
+                }
+            }
+            if (current.isEmpty()) {
+                entries.remove(typeEntries.getKey());
+            }
+        }
+    }
+
+    // Forgets a buffered object that is deleted, returns false if it was not buffered
+    synchronized boolean remove(Class<?> type, String id) {
+        Map<String, Entry> typeEntries = entries.get(type);
+        if (typeEntries == null || typeEntries.remove(id) == null) return false;
+        size--;
+        if (typeEntries.isEmpty()) {
+            entries.remove(type);
+        }
+        return true;
+    }
+
+    // Forgets the buffered objects of a class whose storage is cleared
+    synchronized void remove(Class<?> type) {
+        Map<String, Entry> removed = entries.remove(type);
+        if (removed != null) {
+            size -= removed.size();
+        }
+    }
+
+    private void arm() {
+        if (timer == null && flushInterval.isPositive()) {
+            long nanos = flushInterval.toNanos();
+            timer = flusher.scheduleWithFixedDelay(() -> flushQuietly("Write-behind flush"),
+                    nanos, nanos, TimeUnit.NANOSECONDS);
+        }
+        if (shutdownHook == null) {
+            shutdownHook = new Thread(() -> flushQuietly("Write-behind flush on shutdown"), "write-behind-shutdown");
+            Runtime.getRuntime().addShutdownHook(shutdownHook);
+        }
+    }
+
+    // Stops the timer and the shutdown hook, the next buffered object arms them again
+    synchronized void disarm() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is already shutting down and runs the hook
+            }
+            shutdownHook = null;
+        }
+    }
+
+    // A failed flush keeps the objects buffered, the next flush writes them again
+    private void flushQuietly(String action) {
+        try {
+            store.flush(this);
+        } catch (Exception e) {
+            System.err.println(action + " failed: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.classes.DifferentPerson;
+import JavaObjectPersistency.classes.Person;
+import JavaObjectPersistency.query.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Person has @Indexed fields and DifferentPerson none, with the same stored field names. The same query must
+// give the same records whether it is answered from the indexes or by a scan.
+class IndexedQueryTest {
+    private record Case(String query, Predicate<Person> expected) {}
+
+    private static final List<Case> CASES = List.of(
+            new Case("(fullName.equals('P3'))", p -> p.getName().equals("P3")),
+            new Case("(age.greaterThan(40))", p -> p.getAge() > 40),
+            new Case("(age.lessThan(10)) AND (fullName.equals('P7'))", p -> p.getAge() < 10 && p.getName().equals("P7")),
+            new Case("(fullName.equals('P3')) OR (age.equals(5))", p -> p.getName().equals("P3") || p.getAge() == 5),
+            new Case("NOT (fullName.equals('P3'))", p -> !p.getName().equals("P3")),
+            new Case("(fullName.contains('P1'))", p -> p.getName().contains("P1")),
+            new Case("(age.equals(12))", p -> p.getAge() == 12),
+            new Case("(fullName.equals('false'))", p -> false),
+            new Case("(age.equals(true))", p -> false));
+
+    private final List<Person> people = new ArrayList<>();
+
+    @BeforeEach
+    void fill() throws Exception {
+        try (JsonStore store = new JsonStore()) {
+            store.clearStorage(Person.class);
+            store.clearStorage(DifferentPerson.class);
+            List<DifferentPerson> others = new ArrayList<>();
+            for (int i = 0; i < 3000; i++) {
+                people.add(new Person("P" + (i % 30), i % 90));
+                others.add(new DifferentPerson("P" + (i % 30), i % 90));
+            }
+            store.saveAll(people);
+            store.saveAll(others);
+        }
+    }
+
+    private static List<String> describe(List<?> objects) {
+        List<String> described = new ArrayList<>();
+        for (Object obj : objects) {
+            if (obj instanceof Person person) {
+                described.add(person.getName() + "/" + person.getAge());
+            } else {
+                DifferentPerson person = (DifferentPerson) obj;
+                described.add(person.getName() + "/" + person.getAge());
+            }
+        }
+        described.sort(null);
+        return described;
+    }
+
+    private void assertAgree(JsonStore store) throws Exception {
+        for (Case c : CASES) {
+            List<String> expected = describe(people.stream().filter(c.expected()).toList());
+            assertEquals(expected, describe(store.loadStream(Person.class, new Query(c.query()))), c.query());
+            assertEquals(expected, describe(store.loadStream(DifferentPerson.class, new Query(c.query()))), c.query());
+        }
+    }
+
+    @Test
+    void indexAndScanAgree() throws Exception {
+        try (JsonStore store = new JsonStore()) {
+            assertAgree(store);
+        }
+        // The indexes are read back from disk
+        try (JsonStore store = new JsonStore()) {
+            assertAgree(store);
+        }
+    }
+
+    @Test
+    void indexesFollowUpdatesAndDeletes() throws Exception {
+        try (JsonStore store = new JsonStore()) {
+            Query renamed = new Query("(fullName.equals('P4'))");
+            assertEquals(100, store.updateWhere(Person.class, renamed, Map.of("fullName", "P3", "age", 12)));
+            assertEquals(100, store.updateWhere(DifferentPerson.class, renamed, Map.of("fullName", "P3", "age", 12)));
+            Query deleted = new Query("(age.greaterThan(80))");
+            int removed = store.deleteWhere(Person.class, deleted);
+            assertEquals(removed, store.deleteWhere(DifferentPerson.class, deleted));
+
+            for (Person person : people) {
+                if (person.getName().equals("P4")) {
+                    person.setName("P3");
+                    person.setAge(12);
+                }
+            }
+            people.removeIf(person -> person.getAge() > 80);
+            assertAgree(store);
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package JavaObjectPersistency.store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogStorageEngineTest {
+    private static final long SMALL_SEGMENT = 4 * 1024;
+    // Record header before the key: length(4) crc(4) seq(8) op(1) keyLength(2)
+    private static final int HEADER_SIZE = 19;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] data) {
+        return data == null ? null : new String(data, StandardCharsets.UTF_8);
+    }
+
+    private Path firstSegment() {
+        return dir.resolve("00000001.seg");
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(file -> file.toString().endsWith(".seg")).count();
+        }
+    }
+
+    private void flipByte(Path file, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, position);
+            buffer.put(0, (byte) (buffer.get(0) ^ 0xFF));
+            channel.write(buffer.rewind(), position);
+        }
+    }
+
+    @Test
+    void recordsSurviveReopen() throws Exception {
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            for (int i = 0; i < 100; i++) {
+                engine.put("k" + i, bytes("v" + i));
+            }
+            engine.put("k7", bytes("changed"));
+        }
+
+        // Once from the index snapshot, once by replaying the log
+        for (boolean snapshot : new boolean[]{true, false}) {
+            if (!snapshot) {
+                Files.deleteIfExists(dir.resolve("index.snapshot"));
+            }
+            try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+                assertEquals(100, engine.size());
+                assertEquals("v3", text(engine.get("k3")));
+                assertEquals("changed", text(engine.get("k7")));
+                assertNull(engine.get("missing"));
+            }
+        }
+    }
+
+    @Test
+    void tornTailIsTruncated() throws Exception {
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            for (int i = 0; i < 50; i++) {
+                engine.put("k" + i, bytes("v" + i));
+            }
+        }
+        long complete = Files.size(firstSegment());
+
+        for (boolean snapshot : new boolean[]{true, false}) {
+            // The first bytes of a record, as left by a crash in the middle of an append
+            byte[] head = new byte[HEADER_SIZE + 3];
+            try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.read(ByteBuffer.wrap(head), 0);
+                channel.write(ByteBuffer.wrap(head), channel.size());
+            }
+            if (!snapshot) {
+                Files.deleteIfExists(dir.resolve("index.snapshot"));
+            }
+            try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+                assertEquals(complete, Files.size(firstSegment()));
+                assertEquals(50, engine.size());
+                assertEquals("v49", text(engine.get("k49")));
+            }
+        }
+
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            engine.put("after", bytes("crash"));
+        }
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            assertEquals(51, engine.size());
+            assertEquals("crash", text(engine.get("after")));
+        }
+    }
+
+    // Writes 50 records, then an old and a new version of "a"; returns where the old version starts
+    private long writeSupersededRecord() throws IOException {
+        long old;
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            for (int i = 0; i < 50; i++) {
+                engine.put("k" + i, bytes("v" + i));
+            }
+            old = Files.size(firstSegment());
+            engine.put("a", bytes("old"));
+            engine.put("a", bytes("new"));
+        }
+        return old;
+    }
+
+    @Test
+    void snapshotIsRestored() throws Exception {
+        long old = writeSupersededRecord();
+        // A replay would stop at the damaged record, the snapshot never reads it
+        flipByte(firstSegment(), old + HEADER_SIZE + 1);
+
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            assertEquals(51, engine.size());
+            assertEquals("new", text(engine.get("a")));
+            assertFalse(Files.exists(dir.resolve("index.snapshot")));
+        }
+    }
+
+    @Test
+    void snapshotCoversOnlyItsPrefix() throws Exception {
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            engine.put("a", bytes("1"));
+            engine.put("b", bytes("1"));
+        }
+        Path stale = dir.resolve("stale.snapshot");
+        Files.copy(dir.resolve("index.snapshot"), stale);
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            engine.put("a", bytes("2"));
+            engine.put("c", bytes("1"));
+        }
+        Files.move(stale, dir.resolve("index.snapshot"), java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+        // The records written after the stale snapshot are replayed on top of it
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            assertEquals(3, engine.size());
+            assertEquals("2", text(engine.get("a")));
+            assertEquals("1", text(engine.get("c")));
+        }
+    }
+
+    @Test
+    void snapshotWithWrongMagicIsRejected() throws Exception {
+        long old = writeSupersededRecord();
+        flipByte(firstSegment(), old + HEADER_SIZE + 1);
+        flipByte(dir.resolve("index.snapshot"), 0);
+
+        // Replayed from the log, which ends at the damaged record
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            assertEquals(50, engine.size());
+            assertNull(engine.get("a"));
+            assertEquals(old, Files.size(firstSegment()));
+        }
+    }
+
+    @Test
+    void snapshotBeyondSegmentEndIsRejected() throws Exception {
+        long old = writeSupersededRecord();
+        try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.WRITE)) {
+            channel.truncate(old);
+        }
+
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            assertEquals(50, engine.size());
+            assertNull(engine.get("a"));
+            assertEquals("v0", text(engine.get("k0")));
+        }
+    }
+
+    @Test
+    void compactionKeepsLatestVersions() throws Exception {
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.5)) {
+            for (int round = 0; round < 40; round++) {
+                for (int i = 0; i < 50; i++) {
+                    engine.put("k" + i, bytes("v" + i + "-" + round));
+                }
+            }
+            engine.awaitCompaction();
+
+            assertFalse(Files.exists(firstSegment()));
+            assertTrue(segmentCount() < 10);
+            assertEquals(50, engine.size());
+            for (int i = 0; i < 50; i++) {
+                assertEquals("v" + i + "-39", text(engine.get("k" + i)));
+            }
+        }
+
+        Files.deleteIfExists(dir.resolve("index.snapshot"));
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.5)) {
+            assertEquals(50, engine.size());
+            assertEquals("v49-39", text(engine.get("k49")));
+        }
+    }
+
+    @Test
+    void compactionWithConcurrentWrites() throws Exception {
+        int keys = 100;
+        int rounds = 60;
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.3)) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < keys; i++) {
+                            engine.put("w" + i, bytes("w" + i + "-" + round));
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.set(e);
+                }
+            });
+            writer.start();
+            // Overwrites from this thread keep the compactor busy while the writer runs
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < keys; i++) {
+                    engine.put("k" + i, bytes("k" + i + "-" + round));
+                    assertNotNull(engine.get("k" + i));
+                }
+            }
+            writer.join();
+            assertNull(failure.get());
+            engine.awaitCompaction();
+
+            assertFalse(Files.exists(firstSegment()));
+            assertEquals(2 * keys, engine.size());
+            for (int i = 0; i < keys; i++) {
+                assertEquals("w" + i + "-" + (rounds - 1), text(engine.get("w" + i)));
+                assertEquals("k" + i + "-" + (rounds - 1), text(engine.get("k" + i)));
+            }
+        }
+
+        Files.deleteIfExists(dir.resolve("index.snapshot"));
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.3)) {
+            assertEquals(2 * keys, engine.size());
+            for (int i = 0; i < keys; i++) {
+                assertEquals("w" + i + "-" + (rounds - 1), text(engine.get("w" + i)));
+            }
+        }
+    }
+
+    @Test
+    void deletesSurviveReopen() throws Exception {
+        try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+            engine.put("a", bytes("1"));
+            engine.put("b", bytes("1"));
+            assertTrue(engine.delete("a"));
+            assertFalse(engine.delete("a"));
+            assertFalse(engine.delete("missing"));
+        }
+
+        for (boolean snapshot : new boolean[]{true, false}) {
+            if (!snapshot) {
+                Files.deleteIfExists(dir.resolve("index.snapshot"));
+            }
+            try (LogStorageEngine engine = new LogStorageEngine(dir)) {
+                assertEquals(1, engine.size());
+                assertNull(engine.get("a"));
+                assertFalse(engine.contains("a"));
+            }
+        }
+    }
+
+    @Test
+    void tombstonesDoNotResurrectAfterCompaction() throws Exception {
+        List<String> deleted = new ArrayList<>();
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.5)) {
+            for (int i = 0; i < 200; i++) {
+                engine.put("k" + i, bytes("value-" + i + "-".repeat(40)));
+            }
+            for (int i = 0; i < 150; i++) {
+                deleted.add("k" + i);
+            }
+            assertEquals(150, engine.deleteAll(deleted));
+
+            // Overwrites until the oldest segment, holding the deleted versions, has been rewritten
+            for (int round = 0; round < 200 && Files.exists(firstSegment()); round++) {
+                for (int i = 0; i < 20; i++) {
+                    engine.put("x" + i, bytes("x" + round));
+                }
+                engine.awaitCompaction();
+            }
+            assertFalse(Files.exists(firstSegment()));
+            assertEquals(70, engine.size());
+        }
+
+        for (boolean snapshot : new boolean[]{true, false}) {
+            if (!snapshot) {
+                Files.deleteIfExists(dir.resolve("index.snapshot"));
+            }
+            try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.5)) {
+                assertEquals(70, engine.size());
+                for (String id : deleted) {
+                    assertNull(engine.get(id), id);
+                }
+                assertNotNull(engine.get("k199"));
+                try (RecordCursor cursor = engine.scan()) {
+                    while (cursor.next()) {
+                        assertFalse(deleted.contains(cursor.id()), cursor.id());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void clearDuringCompactionDoesNotComeBack() throws Exception {
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.3)) {
+            for (int round = 0; round < 40; round++) {
+                for (int i = 0; i < 50; i++) {
+                    engine.put("k" + i, bytes("v" + round));
+                }
+            }
+            engine.clear();
+            engine.awaitCompaction();
+            assertEquals(0, engine.size());
+        }
+
+        Files.deleteIfExists(dir.resolve("index.snapshot"));
+        try (LogStorageEngine engine = new LogStorageEngine(dir, SMALL_SEGMENT, 0.3)) {
+            assertEquals(0, engine.size());
+        }
+    }
+}
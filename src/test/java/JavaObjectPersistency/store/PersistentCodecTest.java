@@ -0,0 +1,80 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.classes.DifferentPerson;
+import JavaObjectPersistency.classes.Person;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PersistentCodecTest {
+    @BeforeEach
+    void clear() throws Exception {
+        try (JsonStore store = new JsonStore()) {
+            store.clearStorage(Person.class);
+        }
+    }
+
+    @Test
+    void codecsAreGenerated() {
+        assertEquals("Person_Codec", PersistentCodecs.find(Person.class).getClass().getSimpleName());
+        assertEquals("DifferentPerson_Codec", PersistentCodecs.find(DifferentPerson.class).getClass().getSimpleName());
+        assertNull(PersistentCodecs.find(String.class));
+    }
+
+    @ParameterizedTest
+    @EnumSource(StorageFormat.class)
+    void roundTrip(StorageFormat format) throws Exception {
+        Person root = new Person("Root", 50);
+        root.setTemporaryData("not stored");
+        List<Person> family = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Person member = new Person("Member " + i, 20 + i);
+            member.setFamily(new ArrayList<>(List.of(root)));
+            family.add(member);
+        }
+        root.setFamily(family);
+
+        Object id;
+        try (JsonStore store = new JsonStore()) {
+            store.setStorageFormat(format);
+            store.save(root);
+            id = root.getId();
+        }
+
+        // The record holds the stored field names and the references as ids
+        try (LogStorageEngine storage = new LogStorageEngine(Path.of("Person.log"))) {
+            byte[] data = storage.get(id.toString());
+            assertEquals(format, StorageFormat.of(data));
+            JsonNode record = format.mapper().readTree(data);
+            assertEquals("Root", record.get("fullName").asText());
+            assertEquals(50, record.get("age").asInt());
+            assertFalse(record.has("temporaryData"));
+            assertEquals(3, record.get("family").size());
+            assertEquals(family.get(1).getId().toString(), record.get("family").get(1).asText());
+        }
+
+        try (JsonStore store = new JsonStore()) {
+            Person loaded = store.loadById(Person.class, id).getFirst();
+            assertNotSame(root, loaded);
+            assertEquals("Root", loaded.getName());
+            assertEquals(50, loaded.getAge());
+            assertNull(loaded.getTemporaryData());
+            assertEquals(3, loaded.getFamily().size());
+            for (int i = 0; i < 3; i++) {
+                Person member = loaded.getFamily().get(i);
+                assertEquals("Member " + i, member.getName());
+                assertEquals(20 + i, member.getAge());
+                // The cycle back to the root resolves to the same instance
+                assertSame(loaded, member.getFamily().getFirst());
+            }
+        }
+    }
+}
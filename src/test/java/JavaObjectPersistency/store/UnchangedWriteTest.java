@@ -0,0 +1,102 @@
+package JavaObjectPersistency.store;
+
+import JavaObjectPersistency.classes.Person;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Saves of objects whose stored record would not change are skipped by comparing record fingerprints
+class UnchangedWriteTest {
+    private long written;
+
+    @BeforeEach
+    void clear() throws Exception {
+        try (JsonStore store = new JsonStore()) {
+            store.clearStorage(Person.class);
+        }
+        written = logSize();
+    }
+
+    private static long logSize() throws IOException {
+        try (Stream<Path> files = Files.walk(Path.of("Person.log"))) {
+            return files.filter(file -> file.toString().endsWith(".seg")).mapToLong(file -> file.toFile().length()).sum();
+        }
+    }
+
+    // Bytes appended to the log since the last call
+    private long grew() throws IOException {
+        long size = logSize();
+        long grown = size - written;
+        written = size;
+        return grown;
+    }
+
+    private static Person graph() {
+        Person root = new Person("Root", 50);
+        List<Person> family = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            family.add(new Person("F" + i, i % 90));
+        }
+        root.setFamily(family);
+        return root;
+    }
+
+    @Test
+    void unchangedSavesWriteNothing() throws Exception {
+        try (JsonStore store = new JsonStore()) {
+            Person root = graph();
+            store.save(root);
+            long first = grew();
+            assertTrue(first > 0);
+
+            store.save(root);
+            assertEquals(0, grew());
+            store.saveAll(root.getFamily());
+            assertEquals(0, grew());
+
+            // Only the changed member is written
+            root.getFamily().get(7).setAge(99);
+            store.save(root);
+            long changed = grew();
+            assertTrue(changed > 0 && changed < first / 100, "wrote " + changed);
+        }
+    }
+
+    @Test
+    void loadedObjectsAreKnownUnchanged() throws Exception {
+        Object id;
+        try (JsonStore store = new JsonStore()) {
+            Person root = graph();
+            store.save(root);
+            id = root.getId();
+        }
+        grew();
+
+        try (JsonStore store = new JsonStore()) {
+            Person root = store.loadById(Person.class, id).getFirst();
+            store.save(root);
+            assertEquals(0, grew());
+
+            root.getFamily().get(3).getName();
+            store.save(root);
+            assertEquals(0, grew());
+
+            root.getFamily().get(3).setName("Changed");
+            store.save(root);
+            assertTrue(grew() > 0);
+
+            // Without the cache nothing is known about the stored records, so they are written again
+            store.clearCache();
+            store.save(root);
+            assertTrue(grew() > 0);
+        }
+    }
+}